@@ -0,0 +1,130 @@
+package org.amanzi.index.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.amanzi.index.AmanziIndex;
+import org.amanzi.index.config.DefaultIndexConfig;
+import org.amanzi.index.config.DefaultPropertyConfig;
+import org.amanzi.index.config.PropertyConfig;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of building an index with AmanziIndex.add(Node) and
+ * AmanziIndex.addAll(Iterable), for data arriving in index order and in
+ * random order. Each invocation creates and indexes one batch of nodes in a
+ * single transaction, and the index keeps growing for the whole trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBuildBenchmark {
+	private static final int BATCH = 1000;
+	private static final int VALUES = 100000;
+
+	@Param({ "ordered", "random" })
+	public String order;
+
+	private TemporaryDatabase database;
+	private AmanziIndex index;
+	private int[] calls;
+	private float[] durations;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		database = new TemporaryDatabase();
+		ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("call", 0, VALUES, 1000));
+		properties.add(DefaultPropertyConfig.makeFloatConfig("duration", 0, 600, 100));
+		Transaction tx = database.getGraphDb().beginTx();
+		try {
+			index = new AmanziIndex("build-" + order, database.getGraphDb(), new DefaultIndexConfig(10, properties));
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		Random random = new Random(0);
+		List<Integer> values = new ArrayList<Integer>();
+		for (int i = 0; i < VALUES; i++) {
+			values.add(i);
+		}
+		if (order.equals("random")) {
+			Collections.shuffle(values, random);
+		}
+		calls = new int[VALUES];
+		durations = new float[VALUES];
+		for (int i = 0; i < VALUES; i++) {
+			calls[i] = values.get(i);
+			// durations roughly follow the calls, as they would for sorted data
+			durations[i] = (calls[i] * 600f / VALUES + random.nextFloat() * 20) % 600;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.shutdown();
+	}
+
+	private List<Node> createBatch(GraphDatabaseService db) {
+		ArrayList<Node> nodes = new ArrayList<Node>(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			next = (next + 1) % VALUES;
+			Node node = db.createNode();
+			node.setProperty("call", calls[next]);
+			node.setProperty("duration", durations[next]);
+			nodes.add(node);
+		}
+		return nodes;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void add() {
+		GraphDatabaseService db = database.getGraphDb();
+		Transaction tx = db.beginTx();
+		try {
+			for (Node node : createBatch(db)) {
+				index.add(node);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void addAll() {
+		GraphDatabaseService db = database.getGraphDb();
+		Transaction tx = db.beginTx();
+		try {
+			index.addAll(createBatch(db));
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.amanzi.index.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.amanzi.index.config.DefaultIndexConfig;
+import org.amanzi.index.config.DefaultIndexConfig.IntegerStepper;
+import org.amanzi.index.config.DefaultPropertyConfig;
+import org.amanzi.index.config.IndexConfig;
+import org.amanzi.index.config.IndexLevel;
+import org.amanzi.index.config.PropertyConfig;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the per-add cost of finding the lowest cached IndexLevel that
+ * includes a new set of keys, which AmanziIndex does for every node added. The
+ * 'legacy' benchmark reproduces the original implementation, which converted
+ * all keys into a new array for every level (recalculating the step size with
+ * Math.pow each time) and then compared the arrays. The 'includes' benchmark
+ * uses IndexLevel.includes, with cached step sizes, no allocation and an exit
+ * on the first mismatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyComputationBenchmark {
+	private static final int STEP = 10;
+
+	@Param({ "1", "3", "6" })
+	public int properties;
+
+	private TemporaryDatabase database;
+	private Transaction tx;
+	private IndexConfig config;
+	private IntegerStepper stepper;
+	private ArrayList<IndexLevel> levels;
+	private int[][] keys;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		database = new TemporaryDatabase();
+		tx = database.getGraphDb().beginTx();
+		ArrayList<PropertyConfig<?>> configs = new ArrayList<PropertyConfig<?>>();
+		for (int p = 0; p < properties; p++) {
+			configs.add(DefaultPropertyConfig.makeIntegerConfig("p" + p, 0, 100000, 100000));
+		}
+		config = new DefaultIndexConfig(STEP, configs);
+		stepper = new IntegerStepper(STEP);
+		levels = new ArrayList<IndexLevel>();
+		levels.add(new IndexLevel(0, config, database.getGraphDb()));
+		for (int level = 1; level < 6; level++) {
+			levels.add(new IndexLevel(level, config, levels.get(level - 1)));
+		}
+		// A random walk near the origin, so the search exits at various levels
+		Random random = new Random(0);
+		keys = new int[1024][properties];
+		for (int i = 1; i < keys.length; i++) {
+			for (int p = 0; p < properties; p++) {
+				keys[i][p] = keys[i - 1][p] + random.nextInt(21) - 10;
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		tx.finish();
+		database.shutdown();
+	}
+
+	private int[] nextKeys() {
+		next = (next + 1) % keys.length;
+		return keys[next];
+	}
+
+	private int[] legacyKeysFor(int[] keys, int level) {
+		int[] newKeys = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			newKeys[i] = stepper.indexOf(keys[i], 0, stepper.stepSize(level));
+		}
+		return newKeys;
+	}
+
+	@Benchmark
+	public int legacyLevelIncluding() {
+		int[] values = nextKeys();
+		for (IndexLevel level : levels) {
+			if (Arrays.equals(legacyKeysFor(values, level.getLevel()), level.getIndices())) {
+				return level.getLevel();
+			}
+		}
+		return -1;
+	}
+
+	@Benchmark
+	public int levelIncluding() {
+		int[] values = nextKeys();
+		for (IndexLevel level : levels) {
+			if (level.includes(values)) {
+				return level.getLevel();
+			}
+		}
+		return -1;
+	}
+}
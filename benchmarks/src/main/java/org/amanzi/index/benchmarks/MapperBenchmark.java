@@ -0,0 +1,95 @@
+package org.amanzi.index.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.amanzi.index.mappers.CharacterStringMapper;
+import org.amanzi.index.mappers.FloatMapper;
+import org.amanzi.index.mappers.IntegerMapper;
+import org.amanzi.index.mappers.ListStringMapper;
+import org.amanzi.index.mappers.LongMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the per-call cost of Mapper.toKey for each of the mappers, cycling
+ * through a set of pre-generated values within the configured ranges.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MapperBenchmark {
+	private static final int VALUES = 1024;
+
+	private IntegerMapper integerMapper;
+	private FloatMapper floatMapper;
+	private LongMapper longMapper;
+	private CharacterStringMapper stringMapper;
+	private ListStringMapper listStringMapper;
+	private Integer[] integers = new Integer[VALUES];
+	private Float[] floats = new Float[VALUES];
+	private Long[] longs = new Long[VALUES];
+	private String[] strings = new String[VALUES];
+	private String[] listStrings = new String[VALUES];
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(0);
+		ArrayList<String> sample = new ArrayList<String>();
+		for (int i = 0; i < VALUES; i++) {
+			integers[i] = random.nextInt(10000);
+			floats[i] = random.nextFloat() * 600;
+			longs[i] = 1290000000000L + random.nextInt(86400000);
+			char[] chars = new char[2 + random.nextInt(8)];
+			for (int c = 0; c < chars.length; c++) {
+				chars[c] = (char) ('A' + random.nextInt(26));
+			}
+			strings[i] = String.valueOf(chars);
+			listStrings[i] = "Cause " + random.nextInt(50);
+			sample.add(listStrings[i]);
+		}
+		integerMapper = IntegerMapper.withRangeAndCategories(0, 10000, 100);
+		floatMapper = FloatMapper.withRangeAndCategories(0, 600, 100);
+		longMapper = LongMapper.withRangeAndStep(1290000000000L, 1290086400000L, 60000);
+		stringMapper = CharacterStringMapper.withMinMax("A", "Z", CharacterStringMapper.DEFAULT_DEPTH);
+		listStringMapper = ListStringMapper.withSample(sample);
+	}
+
+	private int next() {
+		next = (next + 1) % VALUES;
+		return next;
+	}
+
+	@Benchmark
+	public int integerMapper() {
+		return integerMapper.toKey(integers[next()]);
+	}
+
+	@Benchmark
+	public int floatMapper() {
+		return floatMapper.toKey(floats[next()]);
+	}
+
+	@Benchmark
+	public int longMapper() {
+		return longMapper.toKey(longs[next()]);
+	}
+
+	@Benchmark
+	public int characterStringMapper() {
+		return stringMapper.toKey(strings[next()]);
+	}
+
+	@Benchmark
+	public int listStringMapper() {
+		return listStringMapper.toKey(listStrings[next()]);
+	}
+}
@@ -0,0 +1,96 @@
+package org.amanzi.index.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.amanzi.index.AmanziIndex;
+import org.amanzi.index.config.DefaultIndexConfig;
+import org.amanzi.index.config.DefaultPropertyConfig;
+import org.amanzi.index.config.PropertyConfig;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the latency of streaming all results of a query on an index of
+ * SIZE nodes, for point, range, AND and OR conditions of varying selectivity.
+ * The 'call' property is unique and uniformly distributed, and 'cause' has 100
+ * random values, so the selectivity of each query is given in its comment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryBenchmark {
+	private static final int SIZE = 50000;
+
+	@Param({ "call == 25000", // point, 1 result
+			"call >= 25000 and call < 25050", // range, 0.1%
+			"call >= 25000 and call < 30000", // range, 10%
+			"call >= 0 and call < 50000", // range, 100%
+			"call >= 25000 and call < 30000 and cause < 10", // and, 1%
+			"call < 500 or call >= 49500", // or, 2%
+	})
+	public String query;
+
+	private TemporaryDatabase database;
+	private AmanziIndex index;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		database = new TemporaryDatabase();
+		GraphDatabaseService db = database.getGraphDb();
+		ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("call", 0, SIZE, 1000));
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("cause", 0, 100, 100));
+		Random random = new Random(0);
+		Transaction tx = db.beginTx();
+		try {
+			index = new AmanziIndex("query", db, new DefaultIndexConfig(10, properties));
+			for (int i = 0; i < SIZE; i++) {
+				Node node = db.createNode();
+				node.setProperty("call", i);
+				node.setProperty("cause", random.nextInt(100));
+				index.add(node);
+				if (i % 10000 == 9999) {
+					tx.success();
+					tx.finish();
+					tx = db.beginTx();
+				}
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.shutdown();
+	}
+
+	@Benchmark
+	public void query(Blackhole blackhole) {
+		for (Node node : index.query(query)) {
+			blackhole.consume(node);
+		}
+	}
+}
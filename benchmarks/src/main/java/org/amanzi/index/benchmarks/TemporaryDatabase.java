@@ -0,0 +1,42 @@
+package org.amanzi.index.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * An embedded Neo4j database in a temporary directory, which is deleted again
+ * when the database is shut down. Each benchmark trial gets its own database.
+ */
+public class TemporaryDatabase {
+	private final File path;
+	private final GraphDatabaseService db;
+
+	public TemporaryDatabase() throws IOException {
+		path = File.createTempFile("amanzi-index-benchmark", "");
+		if (!path.delete() || !path.mkdirs()) {
+			throw new IOException("Failed to create temporary database directory: " + path);
+		}
+		db = new EmbeddedGraphDatabase(path.getAbsolutePath());
+	}
+
+	public GraphDatabaseService getGraphDb() {
+		return db;
+	}
+
+	public void shutdown() {
+		db.shutdown();
+		delete(path);
+	}
+
+	private static void delete(File file) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
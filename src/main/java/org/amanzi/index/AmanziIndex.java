@@ -4,14 +4,38 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.amanzi.index.aggregators.Aggregate;
+import org.amanzi.index.aggregators.IndexStatistics;
+import org.amanzi.index.codecs.KeyCodec;
+import org.amanzi.index.config.ChildLookupCache;
 import org.amanzi.index.config.DefaultIndexConfig;
 import org.amanzi.index.config.IndexConfig;
+import org.amanzi.index.config.IndexFilter;
 import org.amanzi.index.config.IndexLevel;
 import org.amanzi.index.config.PropertyConfig;
 //import org.amanzi.index.legacy.MultiPropertyIndex;
+import org.amanzi.index.mappers.ListStringMapper;
 import org.amanzi.index.mappers.Mapper;
 import static org.amanzi.index.util.IndexUtilities.arrayString;
 import org.neo4j.graphdb.Direction;
@@ -19,13 +43,8 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
-import org.neo4j.graphdb.ReturnableEvaluator;
-import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.TraversalPosition;
-import org.neo4j.graphdb.Traverser.Order;
 import org.neo4j.graphdb.index.IndexHits;
-import org.neo4j.graphdb.Traverser;
 
 public class AmanziIndex implements PreparedIndex<Node> {
 	private GraphDatabaseService db;
@@ -34,13 +53,47 @@ public class AmanziIndex implements PreparedIndex<Node> {
 	private Node indexesNode;
 	private String name;
 	private ArrayList<IndexLevel> levels = new ArrayList<IndexLevel>();
+	private ChildLookupCache childCache;
+	private IndexStatistics statistics; // null if the index has no statistics
+	private LinkedHashMap<String, QueryPlan> planCache = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+			return size() > PLAN_CACHE_SIZE;
+		}
+	};
+	private LinkedHashMap<String, Aggregate> aggregateCache = new LinkedHashMap<String, Aggregate>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Aggregate> eldest) {
+			return size() > AGGREGATE_CACHE_SIZE;
+		}
+	};
+	private ArrayList<StagedNode> nodesToIndex = new ArrayList<StagedNode>();
+	private ExecutorService queryExecutor; // created by the first parallel query
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long countFlushed = 0;
+	private long timeFlushed = 0;
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+	public static final int DEFAULT_DELETE_BATCH_SIZE = 10000;
+	public static final int AGGREGATE_CACHE_SIZE = 10000;
+	public static final int PLAN_CACHE_SIZE = 100;
+	public static final long QUERY_THREAD_KEEP_ALIVE = 1000;
 	public static final int NO_PROPERTY = Integer.MIN_VALUE + 1;
 	public static final int ANY_VALUE = Integer.MAX_VALUE - 1;
+	/**
+	 * Property set on the INDEX_LEAF relationship of a data node that is not
+	 * included in the counts and statistics of the index nodes above it,
+	 * because it was disabled when it was indexed or by disable(Node).
+	 */
+	private static final String UNCOUNTED = "uncounted";
 
 	public AmanziIndex(String name, GraphDatabaseService db, IndexConfig config) {
 		this.name = name;
 		this.db = db;
 		this.config = config;
+		this.childCache = new ChildLookupCache(config.getKeyCodec());
+		this.statistics = config.hasStatistics() ? new IndexStatistics(config) : null;
 		getIndexNode();
 		saveConfig();
 	}
@@ -50,6 +103,8 @@ public class AmanziIndex implements PreparedIndex<Node> {
 		this.db = db;
 		findIndexNode();
 		loadConfig();
+		this.childCache = new ChildLookupCache(config.getKeyCodec());
+		this.statistics = config.hasStatistics() ? new IndexStatistics(config) : null;
 		loadLevels();
 	}
 
@@ -57,14 +112,224 @@ public class AmanziIndex implements PreparedIndex<Node> {
 		throw new UnsupportedOperationException("This method is not valid for Prepared Indexes");
 	}
 
+	/**
+	 * Delete the whole index from the database, in batches of the default
+	 * size, without reporting progress. See delete(int, PrintStream).
+	 */
 	public void delete() {
-		// TODO Auto-generated method stub
+		delete(DEFAULT_DELETE_BATCH_SIZE, null);
+	}
+
+	/**
+	 * Delete the whole index from the database: the index tree, the
+	 * configuration nodes and the index node itself, together with all their
+	 * relationships. The data nodes are not deleted, only unlinked from the
+	 * index. The tree is walked from the top down to the leaf index nodes,
+	 * which are deleted first, so each index node is deleted as soon as its
+	 * children are, and no more than the path to the current node is held in
+	 * memory. The deletions are committed every batchSize operations, so that
+	 * even an index of millions of nodes is deleted with a bounded transaction
+	 * size. For the batches to be committed, this must not be called within
+	 * another transaction. This instance cannot be used after the index is
+	 * deleted.
+	 * 
+	 * @param batchSize
+	 *            the number of nodes and relationships to delete in each
+	 *            transaction
+	 * @param progress
+	 *            stream to report the progress after each batch, or null
+	 * @return the number of nodes and relationships deleted
+	 */
+	public long delete(int batchSize, PrintStream progress) {
+		if (findIndexNode() == null) {
+			return 0;
+		}
+		Node root = getRootIndexNode();
+		nodesToIndex.clear();
+		levels.clear();
+		childCache.clear();
+		planCache.clear();
+		aggregateCache.clear();
+		BatchDeleter deleter = new BatchDeleter(batchSize, progress);
+		try {
+			if (root != null) {
+				deleteTree(root, deleter);
+			}
+			Relationship configRel = indexNode.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CONFIG, Direction.OUTGOING);
+			if (configRel != null) {
+				deleteTree(configRel.getEndNode(), deleter);
+			}
+			deleter.delete(indexNode);
+			deleter.finish();
+		} finally {
+			deleter.close();
+		}
+		indexNode = null;
+		return deleter.count;
+	}
+
+	/**
+	 * Delete the tree of nodes below the top node, following all outgoing
+	 * relationships except INDEX_LEAF, which leads to the data nodes. The
+	 * first child of the current node is found again after each deletion,
+	 * instead of keeping relationship iterators open across the batches.
+	 */
+	private void deleteTree(Node top, BatchDeleter deleter) {
+		ArrayList<Node> stack = new ArrayList<Node>();
+		stack.add(top);
+		while (!stack.isEmpty()) {
+			Node node = stack.get(stack.size() - 1);
+			Node child = null;
+			for (Relationship rel : node.getRelationships(Direction.OUTGOING)) {
+				if (!rel.isType(AmanziIndexRelationshipTypes.INDEX_LEAF)) {
+					child = rel.getEndNode();
+					break;
+				}
+			}
+			if (child != null) {
+				stack.add(child);
+			} else {
+				deleter.delete(node);
+				stack.remove(stack.size() - 1);
+			}
+		}
+	}
 
+	/**
+	 * This class deletes nodes, with all their relationships, in transactions
+	 * of a limited number of operations, reporting the progress after each
+	 * one.
+	 */
+	private class BatchDeleter {
+		private final int batchSize;
+		private final PrintStream progress;
+		private final long start = System.currentTimeMillis();
+		private Transaction tx;
+		private int operations = 0;
+		private long count = 0;
+
+		private BatchDeleter(int batchSize, PrintStream progress) {
+			this.batchSize = Math.max(1, batchSize);
+			this.progress = progress;
+			this.tx = db.beginTx();
+		}
+
+		private void delete(Node node) {
+			// Collect the relationships first, since a batch could be committed
+			// while deleting them
+			ArrayList<Relationship> rels = new ArrayList<Relationship>();
+			for (Relationship rel : node.getRelationships()) {
+				rels.add(rel);
+			}
+			for (Relationship rel : rels) {
+				rel.delete();
+				deleted();
+			}
+			node.delete();
+			deleted();
+		}
+
+		private void deleted() {
+			count++;
+			if (++operations >= batchSize) {
+				tx.success();
+				tx.finish();
+				tx = db.beginTx();
+				operations = 0;
+				report();
+			}
+		}
+
+		private void report() {
+			if (progress != null) {
+				progress.println("Deleted " + count + " nodes and relationships of index '" + name + "' in "
+						+ (System.currentTimeMillis() - start) + "ms");
+			}
+		}
+
+		/** Mark the last batch as successful */
+		private void finish() {
+			tx.success();
+		}
+
+		private void close() {
+			tx.finish();
+			report();
+		}
 	}
 
+	/**
+	 * Find the data nodes with the indexed property equal to the value. This
+	 * is an exact match lookup that does not compile a query: the value is
+	 * mapped to its level 0 key, and the search descends from the root only
+	 * into the children with the key of that value at each level, so only the
+	 * leaf index nodes that can contain the value have their data nodes
+	 * tested. In an index of a single property the children are found with the
+	 * child lookup cache, so each level costs a single node read.
+	 * 
+	 * @param key
+	 *            the name of an indexed property
+	 * @param value
+	 *            the value to find, or a string to parse with the mapper of
+	 *            the property
+	 */
 	public IndexHits<Node> get(String key, Object value) {
-		// TODO Auto-generated method stub
-		return null;
+		PropertyConfig<?> property = config.getProperty(key);
+		if (property == null) {
+			throw new RuntimeException("Cannot get by property '" + key + "', which is not in the index");
+		}
+		Mapper<?> mapper = property.getMapper();
+		if (value instanceof String) {
+			value = mapper.parse((String) value);
+		}
+		ArrayList<Node> results = new ArrayList<Node>();
+		Relationship rootRel = findIndexNode().getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_ROOT, Direction.OUTGOING);
+		int key0 = mapper.keyFor(value);
+		// A value without a key is in no data node yet
+		if (rootRel != null && key0 != Mapper.NO_KEY) {
+			int position = config.getPropertyPosition(key);
+			KeyCodec codec = config.getKeyCodec();
+			Node root = rootRel.getEndNode();
+			int level = (Integer) root.getProperty("level");
+			ArrayList<Node> nodes = new ArrayList<Node>();
+			if (codec.keyAt(root.getProperty("index"), position) == config.keyFor(key0, level)) {
+				nodes.add(root);
+			}
+			for (; level > 0 && nodes.size() > 0; level--) {
+				int childKey = config.keyFor(key0, level - 1);
+				ArrayList<Node> children = new ArrayList<Node>();
+				for (Node node : nodes) {
+					if (config.size() == 1) {
+						Node child = childCache.getChild(node, new int[] { childKey });
+						if (child != null) {
+							children.add(child);
+						}
+					} else {
+						for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+							Node child = rel.getEndNode();
+							if (codec.keyAt(child.getProperty("index"), position) == childKey) {
+								children.add(child);
+							}
+						}
+					}
+				}
+				nodes = children;
+			}
+			for (Node node : nodes) {
+				for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+					Node data = rel.getEndNode();
+					Object dataValue = data.getProperty(key, null);
+					if (dataValue != null && !isDisabled(data) && mapper.compare(dataValue, value) == 0) {
+						results.add(data);
+					}
+				}
+			}
+		}
+		return new AmanziIndexHits(results);
+	}
+
+	public IndexConfig getConfig() {
+		return config;
 	}
 
 	public Class<Node> getEntityType() {
@@ -82,13 +347,15 @@ public class AmanziIndex implements PreparedIndex<Node> {
 			return true;
 		}
 
-		public void buildIndexFilter(IndexLevel level, int min[], int max[]) {
-			// Do nothing by default, which means do not filter on the index
-			// nodes
-			// This should be overridden by any query conditions capable of
-			// filtering on the index nodes.
-			// For example, the equality and inequality conditions should
-			// definitely filter
+		/**
+		 * Build the filter of the index keys at this level that can contain
+		 * matching data. By default the index is not filtered at all, and the
+		 * filter is not exact, so all data is tested. This should be overridden
+		 * by any query conditions capable of filtering on the index nodes, like
+		 * the equality and inequality conditions.
+		 */
+		public IndexFilter buildIndexFilter(IndexLevel level) {
+			return level.buildIndexFilter();
 		}
 
 		public String toString() {
@@ -136,44 +403,16 @@ public class AmanziIndex implements PreparedIndex<Node> {
 		}
 
 		/**
-		 * The 'and' filter should create the most restrictive ranges
+		 * The 'and' filter is the intersection of the filters of all
+		 * conditions, and is exact if they all are
 		 */
-		public void buildIndexFilter(IndexLevel level, int min[], int max[]) {
-			int[] xmin = new int[min.length];
-			int[] xmax = new int[max.length];
-			Arrays.fill(xmin, Integer.MAX_VALUE);
-			Arrays.fill(xmax, Integer.MIN_VALUE);
+		public IndexFilter buildIndexFilter(IndexLevel level) {
+			IndexFilter filter = null;
 			for (QueryCondition condition : conditions) {
-				int[] tmin = new int[min.length];
-				int[] tmax = new int[max.length];
-				Arrays.fill(tmin, Integer.MAX_VALUE);
-				Arrays.fill(tmax, Integer.MIN_VALUE);
-				condition.buildIndexFilter(level, tmin, tmax);
-				maxOf(xmin, tmin);
-				minOf(xmax, tmax);
-			}
-			minOf(min, xmin);
-			maxOf(max, xmax);
-		}
-
-		private void minOf(int[] max, int[] tmax) {
-			for (int i = 0; i < max.length; i++) {
-				if (max[i] == Integer.MIN_VALUE) {
-					max[i] = tmax[i];
-				} else if (tmax[i] != Integer.MIN_VALUE) {
-					max[i] = Math.min(max[i], tmax[i]);
-				}
-			}
-		}
-
-		private void maxOf(int[] min, int[] tmin) {
-			for (int i = 0; i < min.length; i++) {
-				if (min[i] == Integer.MAX_VALUE) {
-					min[i] = tmin[i];
-				} else if (tmin[i] != Integer.MAX_VALUE) {
-					min[i] = Math.max(min[i], tmin[i]);
-				}
+				IndexFilter conditionFilter = condition.buildIndexFilter(level);
+				filter = filter == null ? conditionFilter : filter.and(conditionFilter);
 			}
+			return filter == null ? level.buildIndexFilter() : filter;
 		}
 	}
 
@@ -199,12 +438,38 @@ public class AmanziIndex implements PreparedIndex<Node> {
 		}
 
 		/**
-		 * The 'or' filter should create the least restrictive ranges
+		 * The 'or' filter is the union of the boxes of the filters of all
+		 * conditions, rather than a bounding box around them, and so is also
+		 * exact if they all are
 		 */
-		public void buildIndexFilter(IndexLevel level, int min[], int max[]) {
+		public IndexFilter buildIndexFilter(IndexLevel level) {
+			IndexFilter filter = null;
 			for (QueryCondition condition : conditions) {
-				condition.buildIndexFilter(level, min, max);
+				IndexFilter conditionFilter = condition.buildIndexFilter(level);
+				filter = filter == null ? conditionFilter : filter.or(conditionFilter);
 			}
+			return filter == null ? level.buildIndexFilter() : filter;
+		}
+	}
+
+	/**
+	 * The 'not' condition inverts another condition. Since the data that does
+	 * not match a condition can lie anywhere, it does not limit the index
+	 * ranges at all.
+	 */
+	public static class NotCondition extends QueryCondition {
+		public QueryCondition condition;
+
+		public NotCondition(QueryCondition condition) {
+			this.condition = condition;
+		}
+
+		public boolean evaluate(Node node) {
+			return !condition.evaluate(node);
+		}
+
+		public String toString() {
+			return super.toString() + "(" + condition + ")";
 		}
 	}
 
@@ -237,13 +502,13 @@ public class AmanziIndex implements PreparedIndex<Node> {
 			return val != null && compareThem(config.getMapper(), val, value);
 		}
 
-		public void buildIndexFilter(IndexLevel level, int min[], int max[]) {
+		public IndexFilter buildIndexFilter(IndexLevel level) {
 			if (comparisonDescription.contains("<")) {
-				level.buildIndexFilter(min, max, property, null, value);
+				return level.buildIndexFilter(property, null, value);
 			} else if (comparisonDescription.contains(">")) {
-				level.buildIndexFilter(min, max, property, value, null);
+				return level.buildIndexFilter(property, value, null);
 			} else {
-				level.buildIndexFilter(min, max, property, value, value);
+				return level.buildIndexFilter(property, value, value);
 			}
 		}
 
@@ -339,79 +604,160 @@ public class AmanziIndex implements PreparedIndex<Node> {
 	 * inequality operators. This can be implemented either as an instance of
 	 * the QueryCondition class (which can be a collection of other
 	 * QueryConditions), or it can be a parsable string that in turn can be
-	 * parsed into a QueryCondition. And example might be:
+	 * parsed into a QueryCondition by the QueryParser. And example might be:
 	 * 
 	 * <pre>
 	 * query(&quot;propA &lt; 5 and propA &gt; 2 or propA == 7 and propB &gt;= something&quot;)
-	 * </pre<
+	 * query(&quot;(propA BETWEEN 2 AND 5 or propA IN (7, 9)) and not propB == something&quot;)
+	 * </pre>
 	 */
 	public IndexHits<Node> query(Object queryOrQueryObject) {
-		if (queryOrQueryObject instanceof QueryCondition) {
-			return queryCondition((QueryCondition) queryOrQueryObject);
-		} else {
-			return queryCondition(makeQueryCondition(queryOrQueryObject.toString().replaceAll(" and ", " AND ")
-					.replaceAll(" or ", " OR ")));
+		return query(new QueryOptions(), queryOrQueryObject);
+	}
+
+	/**
+	 * Query the index as with query(Object), but with options controlling how
+	 * the results are produced, like searching subtrees of the index in
+	 * parallel. See QueryOptions for details. The options come first, since
+	 * query(String, Object) is already the key/value query of the Index
+	 * interface.
+	 */
+	public IndexHits<Node> query(QueryOptions options, Object queryOrQueryObject) {
+		if (options.getOrderBy() != null) {
+			PropertyConfig<?> orderBy = config.getProperty(options.getOrderBy());
+			if (orderBy == null) {
+				throw new RuntimeException("Cannot order by property '" + options.getOrderBy() + "', which is not in the index");
+			} else if (!orderBy.getMapper().isOrderPreserving()) {
+				throw new RuntimeException("Cannot order by property '" + options.getOrderBy()
+						+ "', since its index keys are not in the order of its values");
+			}
+		}
+		return new AmanziIndexHits(findIndexNode(), new SearchEvaluator(makePlan(queryOrQueryObject)), options);
+	}
+
+	/**
+	 * Get the pool of threads shared by the parallel queries of this index.
+	 * Threads are created as needed, and end once they have been idle for
+	 * QUERY_THREAD_KEEP_ALIVE milliseconds, so the pool needs no shutdown.
+	 */
+	private synchronized ExecutorService getQueryExecutor() {
+		if (queryExecutor == null) {
+			queryExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, QUERY_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable runnable) {
+							// Do not keep the JVM alive for abandoned results
+							Thread thread = new Thread(runnable, "AmanziIndex query");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return queryExecutor;
+	}
+
+	/**
+	 * Calculate an aggregation function of a property over all data nodes
+	 * matching the query, which can be a QueryCondition or a parsable string,
+	 * as for query(Object). For example, the average call duration in a range
+	 * of LAC values:
+	 * 
+	 * <pre>
+	 * aggregate(&quot;lac &gt;= 100 and lac &lt; 200&quot;, &quot;duration&quot;, Aggregate.Function.AVG)
+	 * </pre>
+	 * 
+	 * This is only answered from the statistics on the index nodes if the
+	 * duration is one of the numerical properties of the index, see
+	 * aggregate(Object, String).
+	 * 
+	 * @return the result of the function, which is NaN for MIN, MAX and AVG if
+	 *         no matching data node has a numerical value for the property
+	 * @see #aggregate(Object, String)
+	 */
+	public double aggregate(Object queryOrQueryObject, String property, Aggregate.Function function) {
+		return aggregate(queryOrQueryObject, property).get(function);
+	}
+
+	/**
+	 * Calculate the count, sum, min and max of a property over all data nodes
+	 * matching the query in a single walk of the index tree. Index subtrees
+	 * entirely within the query ranges are answered from the statistics on the
+	 * index nodes if the property has them, or else from a cache of previously
+	 * calculated subtree aggregates, and only the data nodes in subtrees on the
+	 * edges of the ranges are tested against the query. Data nodes marked
+	 * 'disabled' are excluded everywhere, as they are from the query results.
+	 * <p>
+	 * Statistics are only kept for the numerical properties of the index
+	 * configuration. For any other property, like a measure that is only
+	 * filtered on through other properties, the data nodes of each subtree are
+	 * read the first time it is aggregated, and only later aggregations of the
+	 * same subtree come from the cache. A measure that is aggregated often
+	 * should therefore be added to the index as a property, even if it is
+	 * rarely queried on.
+	 * </p>
+	 */
+	public Aggregate aggregate(Object queryOrQueryObject, String property) {
+		Aggregate aggregate = new Aggregate();
+		Relationship rootRel = findIndexNode().getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_ROOT, Direction.OUTGOING);
+		if (rootRel != null) {
+			new SearchEvaluator(makePlan(queryOrQueryObject)).aggregate(rootRel.getEndNode(), property, aggregate);
 		}
+		return aggregate;
 	}
 
-	private QueryCondition makeQueryCondition(String query) {
-		String[] subqueries = query.split(" OR ");
-		if (subqueries.length > 1) {
-			return new OrCondition(makeConditions(subqueries));
+	/**
+	 * Find the compiled plan for the query, which can be a QueryCondition or a
+	 * parsable string. Plans for query strings are cached, keyed by the query,
+	 * the current depth of the index tree and the generation of the mappers
+	 * that give keys to values as they arrive, so repeated queries skip both
+	 * the parsing and the calculation of the index ranges, but a plan is not
+	 * used after a query value might have been given a key.
+	 */
+	private QueryPlan makePlan(Object queryOrQueryObject) {
+		if (queryOrQueryObject instanceof QueryCondition) {
+			return new QueryPlan((QueryCondition) queryOrQueryObject);
 		} else {
-			subqueries = query.split(" AND ");
-			if (subqueries.length > 1) {
-				return new AndCondition(makeConditions(subqueries));
-			} else {
-				subqueries = query.split(" (==|\\<\\=|\\>\\=|\\<|\\>) ");
-				if (subqueries.length > 1) {
-					String op = query.replaceFirst(subqueries[0], "").replaceFirst(subqueries[1], "");
-					String property = subqueries[0];
-					PropertyConfig<?> propertyConfig = config.getProperty(property);
-					Object value = propertyConfig.getMapper().parse(subqueries[1]);
-					if (op.contains("==")) {
-						return new EqualsCondition(property, value, propertyConfig);
-					} else if (op.contains("<=")) {
-						return new LessThanOrEqualsCondition(property, value, propertyConfig);
-					} else if (op.contains(">=")) {
-						return new GreaterThanOrEqualsCondition(property, value, propertyConfig);
-					} else if (op.contains("<")) {
-						return new LessThanCondition(property, value, propertyConfig);
-					} else if (op.contains(">")) {
-						return new GreaterThanCondition(property, value, propertyConfig);
-					} else {
-						throw new RuntimeException("Unimplemented operation[" + op + "] in query: " + query);
-					}
-				} else {
-					throw new RuntimeException("Unimplemented query: " + query);
-				}
+			String key = levels.size() + ":" + getMapperGeneration() + ":" + queryOrQueryObject;
+			QueryPlan plan = planCache.get(key);
+			if (plan == null) {
+				plan = new QueryPlan(new QueryParser(config).parse(queryOrQueryObject.toString()));
+				planCache.put(key, plan);
 			}
+			return plan;
 		}
 	}
 
-	private ArrayList<QueryCondition> makeConditions(String[] subqueries) {
-		ArrayList<QueryCondition> conditions = new ArrayList<QueryCondition>();
-		for (String subquery : subqueries) {
-			conditions.add(makeQueryCondition(subquery));
+	/**
+	 * @return the sum of the generations of the list string mappers, which
+	 *         changes every time one of them gives a value a new key
+	 */
+	private int getMapperGeneration() {
+		int generation = 0;
+		for (PropertyConfig<?> property : config.getProperties()) {
+			if (property.getMapper() instanceof ListStringMapper) {
+				generation += ((ListStringMapper) property.getMapper()).getGeneration();
+			}
 		}
-		return conditions;
+		return generation;
 	}
 
 	private static class AmanziIndexHits implements IndexHits<Node> {
 
 		private SearchEvaluator searchEvaluator;
-		private Traverser searchTraverser; // used for streamed searching
+		private QueryOptions options;
+		private Node rootNode; // top of the index tree, or null if empty
 		private Iterator<Node> searchIterator; // used for streamed searching
-		private ArrayList<Node> results; // used for either empty results, or
-											// cached results
+		private ArrayList<Node> results; // used for empty or prepared results
+		private int size = -1; // cached result of size()
+		private int returned = 0; // results returned, for the limit
 
 		/**
 		 * Construct with the index node, or the index root node, and a
 		 * SearchEvaluator pre-configured with the search query. This class will
-		 * wrap the traverser for streamed search results, or alternatively it
-		 * will cache the results and return an iterator on the cache. The
-		 * latter mode will be used if the size() method is called. Do not call
-		 * size() for potentially very large result sets.
+		 * wrap a SearchWalker, or a ParallelSearchWalker if the options ask
+		 * for parallelism, for streamed search results. The size() method
+		 * counts the results with a separate walk of the index tree, which
+		 * does not load the results into memory, and uses the counts stored in
+		 * the index nodes where possible.
 		 * 
 		 * @param indexNode
 		 *            the node representing the index to search, normally
@@ -419,27 +765,44 @@ public class AmanziIndex implements PreparedIndex<Node> {
 		 * @param searchEvaluator
 		 *            the SearchEvaluator configured with the search query to
 		 *            apply to the index and data nodes
+		 * @param options
+		 *            the options for producing the results
 		 */
-		public AmanziIndexHits(Node indexNode, SearchEvaluator searchEvaluator) {
+		public AmanziIndexHits(Node indexNode, SearchEvaluator searchEvaluator, QueryOptions options) {
 			this.searchEvaluator = searchEvaluator;
+			this.options = options;
 			Relationship rootRel = indexNode.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_ROOT, Direction.OUTGOING);
 			if (rootRel != null) {
-				// We have an index tree, so traverse it
-				this.searchTraverser = rootRel.getEndNode().traverse(Order.DEPTH_FIRST, searchEvaluator, searchEvaluator,
-						AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING, AmanziIndexRelationshipTypes.INDEX_LEAF,
-						Direction.OUTGOING);
+				// We have an index tree, so walk it
+				this.rootNode = rootRel.getEndNode();
 			} else {
 				// We have no index tree, so create empty result set
 				results = new ArrayList<Node>();
 			}
 		}
 
+		/**
+		 * Construct with results that have already been found
+		 */
+		public AmanziIndexHits(ArrayList<Node> results) {
+			this.results = results;
+			this.options = new QueryOptions();
+		}
+
 		private Iterator<Node> getSearchIterator() {
 			if (searchIterator == null) {
 				if (results != null) {
 					searchIterator = results.iterator();
+				} else if (options.getOrderBy() != null) {
+					searchIterator = searchEvaluator.new OrderedSearchWalker(rootNode, options.getOrderBy(), options
+							.isDescending());
+				} else if (options.getParallelism() > 1) {
+					searchIterator = searchEvaluator.new ParallelSearchWalker(rootNode, options);
 				} else {
-					searchIterator = searchTraverser.iterator();
+					searchIterator = searchEvaluator.new SearchWalker(rootNode);
+				}
+				for (int i = 0; i < options.getOffset() && searchIterator.hasNext(); i++) {
+					searchIterator.next();
 				}
 			}
 			return searchIterator;
@@ -447,11 +810,20 @@ public class AmanziIndex implements PreparedIndex<Node> {
 
 		@Override
 		public boolean hasNext() {
+			if (options.getLimit() >= 0 && returned >= options.getLimit()) {
+				// Stop any searching threads as soon as the limit is reached
+				close();
+				return false;
+			}
 			return getSearchIterator().hasNext();
 		}
 
 		@Override
 		public Node next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			returned++;
 			return getSearchIterator().next();
 		}
 
@@ -466,6 +838,9 @@ public class AmanziIndex implements PreparedIndex<Node> {
 
 		@Override
 		public void close() {
+			if (searchIterator instanceof SearchEvaluator.ParallelSearchWalker) {
+				((SearchEvaluator.ParallelSearchWalker) searchIterator).close();
+			}
 			searchIterator = null;
 		}
 
@@ -476,147 +851,113 @@ public class AmanziIndex implements PreparedIndex<Node> {
 
 		@Override
 		public Node getSingle() {
-			Node single = getSearchIterator().next();
+			Node single = next();
 			close();
 			return single;
 		}
 
 		@Override
 		public int size() {
-			if (results == null) {
-				results = new ArrayList<Node>();
-				for (Node node : searchTraverser) {
-					results.add(node);
+			if (size < 0) {
+				if (results != null) {
+					size = results.size();
+				} else {
+					size = searchEvaluator.count(rootNode);
+				}
+				size = Math.max(0, size - options.getOffset());
+				if (options.getLimit() >= 0) {
+					size = Math.min(size, options.getLimit());
 				}
-				close();
 			}
-			return results.size();
+			return size;
 		}
 
 		public String toString() {
-			return "AmanziIndexHits[" + searchEvaluator + "]";
+			return "AmanziIndexHits[" + (searchEvaluator == null ? results.size() + " results" : searchEvaluator) + "]";
 		}
 	}
 
-	private class SearchEvaluator implements StopEvaluator, ReturnableEvaluator {
-		private final ArrayList<int[]> levelMin = new ArrayList<int[]>();
-		private final ArrayList<int[]> levelMax = new ArrayList<int[]>();
-		private Node currentNode = null;
-		private boolean nodeInRange = false;
-		private boolean nodeIsIndex = false;
-		private boolean indexOnEdge = false;
-		private int countNodes = 0;
-		private int countResults = 0;
-		private QueryCondition query;
+	/**
+	 * The relationship of an index node to the ranges of a search. Index nodes
+	 * entirely inside the ranges only contain matching data, index nodes on the
+	 * edge of the ranges contain data that needs to be tested, and index nodes
+	 * outside the ranges contain no matching data.
+	 */
+	private enum Containment {
+		OUTSIDE, EDGE, INSIDE;
+	}
+
+	/**
+	 * The compiled form of a query, holding the query conditions and the index
+	 * ranges of the query at each level of the index. Plans have no search
+	 * state, so can be cached and used for many searches.
+	 */
+	private class QueryPlan {
+		private final ArrayList<IndexFilter> levelFilters = new ArrayList<IndexFilter>();
+		private final ArrayList<Integer> levelNoProperty = new ArrayList<Integer>();
+		private final QueryCondition query;
 
-		public SearchEvaluator(QueryCondition query) {
+		private QueryPlan(QueryCondition query) {
 			this.query = query;
-			// First we convert the search range into index ranges for each
+			// First we convert the search range into index filters for each
 			// level of the index
 			for (IndexLevel level : levels) {
-				int[] min = new int[config.size()];
-				int[] max = new int[config.size()];
-				Arrays.fill(min, Integer.MAX_VALUE);
-				Arrays.fill(max, Integer.MIN_VALUE);
-				// Convert the query into a set of min/max ranges
-				query.buildIndexFilter(level, min, max);
-				// Remove any conditions not specified
-				for (int i = 0; i < min.length; i++) {
-					if (min[i] == Integer.MAX_VALUE)
-						min[i] = ANY_VALUE;
-					if (max[i] == Integer.MIN_VALUE)
-						max[i] = ANY_VALUE;
-				}
-				levelMin.add(min);
-				levelMax.add(max);
-			}
-		}
-
-		private void debugNode(Node node) {
-			if (node.hasProperty("index")) {
-				int[] index = (int[]) node.getProperty("index", null);
-				Integer level = (Integer) node.getProperty("level", null);
-				System.out.println("Searching index node: level[" + level + "], index[" + Arrays.toString(index) + "]");
-			} else {
-				StringBuffer sb = new StringBuffer();
-				for (String p : node.getPropertyKeys()) {
-					if (sb.length() > 0)
-						sb.append(", ");
-					try {
-						sb.append(p).append("='").append(node.getProperty(p).toString()).append("'");
-					} catch (Exception e) {
-					}
-				}
-				System.out.println("Searching data node: " + node + " (" + sb + ")");
-			}
-			System.out.println("\tGot results: nodeIsIndex[" + nodeIsIndex + "], nodeInRange[" + nodeInRange + "]");
-		}
-
-		private void setTestNode(Node node) {
-			if (node != currentNode) {
-				currentNode = node;
-				countNodes++;
-				int[] index = (int[]) node.getProperty("index", null);
-				Integer level = (Integer) node.getProperty("level", null);
-				// Do not traverse further if we are outside the index tree
-				if (index == null || level == null) {
-					nodeIsIndex = false;
-					nodeInRange = query.evaluate(node);
-					// TODO: Consider optimizing using the results of
-					// indexOnEdge
-					if (nodeInRange) {
-						countResults++;
-					}
-				} else {
-					// Index nodes get tested to see if they are in the range
-					nodeIsIndex = true;
-					nodeInRange = true;
-					int[] minIndex = levelMin.get(level);
-					int[] maxIndex = levelMax.get(level);
-					for (int i = 0; i < minIndex.length; i++) {
-						if (minIndex[i] != ANY_VALUE && index[i] < minIndex[i]) {
-							nodeInRange = false;
-							break;
-						}
-						if (maxIndex[i] != ANY_VALUE && index[i] > maxIndex[i]) {
-							nodeInRange = false;
-							break;
-						}
-						if (index[i] == minIndex[i] || index[i] == maxIndex[i]) {
-							// Index is on the edge of the range, and so can
-							// contain data on both sides
-							indexOnEdge = true;
-						}
-					}
-				}
-				debugNode(node);
+				levelFilters.add(query.buildIndexFilter(level));
+				levelNoProperty.add(config.keyFor(NO_PROPERTY, level.getLevel()));
 			}
 		}
 
-		@Override
-		public boolean isStopNode(TraversalPosition currentPos) {
-			// if (currentPos.isStartNode()) {
-			// return false;
-			// } else {
-			setTestNode(currentPos.currentNode());
-			return !nodeIsIndex || !nodeInRange;
-			// }
+		/**
+		 * Test the index keys of an index node against the boxes of the index
+		 * filter of the search at its level. The index node is outside if it
+		 * is outside all boxes, inside if it is inside any box, and otherwise
+		 * on the edge. The keys are decoded into the scratch array, which
+		 * each walker reuses for all the index nodes it classifies.
+		 */
+		private Containment classifyIndex(Object index, int level, int[] keys) {
+			IndexFilter filter = levelFilters.get(level);
+			KeyCodec codec = config.getKeyCodec();
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = codec.keyAt(index, i);
+			}
+			Containment containment = Containment.OUTSIDE;
+			for (int box = 0; box < filter.getBoxCount(); box++) {
+				Containment inBox = classifyBox(keys, filter, box, levelNoProperty.get(level));
+				if (inBox == Containment.INSIDE) {
+					return inBox;
+				} else if (inBox == Containment.EDGE) {
+					containment = inBox;
+				}
+			}
+			return containment;
 		}
 
-		@Override
-		public boolean isReturnableNode(TraversalPosition currentPos) {
-			if (currentPos.currentNode().hasProperty("state")) {
-				if (currentPos.currentNode().getProperty("state").equals("disabled")) {
-					return false;
+		/**
+		 * An index node is only inside a box if the filter is exact, and its
+		 * keys lie strictly between the limits of every property limited by
+		 * the box, since an index node with a key equal to a limit can contain
+		 * data on both sides of it. For limited properties the key for missing
+		 * properties is also treated as an edge, since nodes without the
+		 * property never match.
+		 */
+		private Containment classifyBox(int[] keys, IndexFilter filter, int box, int noProperty) {
+			int[] min = filter.getMin(box);
+			int[] max = filter.getMax(box);
+			Containment containment = filter.isExact() ? Containment.INSIDE : Containment.EDGE;
+			for (int i = 0; i < keys.length; i++) {
+				int key = keys[i];
+				if (key < min[i] || key > max[i]) {
+					return Containment.OUTSIDE;
+				}
+				if (filter.isLimited(box, i)) {
+					if (key == min[i] || key == max[i] || key == noProperty) {
+						// Index is on the edge of the range, and so can
+						// contain data on both sides
+						containment = Containment.EDGE;
+					}
 				}
 			}
-
-			// if (currentPos.isStartNode()) {
-			// return false;
-			// } else {
-			setTestNode(currentPos.currentNode());
-			return nodeInRange && !nodeIsIndex;
-			// }
+			return containment;
 		}
 
 		public String toString() {
@@ -624,83 +965,1190 @@ public class AmanziIndex implements PreparedIndex<Node> {
 		}
 	}
 
-	private IndexHits<Node> queryCondition(QueryCondition queryCondition) {
-		return new AmanziIndexHits(findIndexNode(), new SearchEvaluator(queryCondition));
-	}
-
-	public IndexHits<Node> query(String key, Object queryOrQueryObject) {
-		// TODO Auto-generated method stub
-		return null;
-	}
+	private class SearchEvaluator {
+		private final QueryPlan plan;
+		private final QueryCondition query;
+		private final int[] keys; // scratch keys for the walks of this thread
 
-	public void remove(Node entity, String key, Object value) {
-		// TODO Auto-generated method stub
+		public SearchEvaluator(QueryPlan plan) {
+			this.plan = plan;
+			this.query = plan.query;
+			this.keys = new int[config.size()];
+		}
 
-	}
+		private Containment classifyIndex(Object index, int level) {
+			return plan.classifyIndex(index, level, keys);
+		}
 
-	/**
-	 * This is the man indexing method of this class. It adds the specified node
-	 * to the index. Firstly it uses the PropertyConfig of this index to find
-	 * the required properties of the node to be indexed, and then it converts
-	 * these to the internal int[] used as the index key, using the Mappers
-	 * configured in the PropertyConfig. Then the node is finally attached to
-	 * the appropriate index node based on the index key int[]. It is possible,
-	 * based on how the index was configured, for this node to be processed
-	 * later, and held temporarily in a cache. If that happens, expect it to be
-	 * added to the tree at some later add(Node) call, or at the end in the
-	 * finishUp() method (which calls flush() to add the cached nodes to the
-	 * tree).
-	 * <p>
-	 * If a configured property does not exist on the node, the special value if
-	 * NO_PROPERTY is used. This is the value Integer.MIN_VALUE, and allows the
-	 * node to be indexed without that property. In later searches if the query
-	 * includes that property, such nodes can be ignored from the results.
-	 * </p>
-	 * 
-	 * @param node
-	 *            Node to index
-	 */
-	public void add(Node node) {
-		int[] keys = new int[config.size()];
-		int i = 0;
-		for (PropertyConfig<?> property : config.getProperties()) {
-			String propName = property.getName();
-			if (node.hasProperty(property.getName())) {
-				Mapper<?> mapper = property.getMapper();
-				int key = mapper.toKey(node.getProperty(property.getName()));
-				keys[i] = key;
+		/**
+		 * Count the matching data nodes below the specified index node, without
+		 * collecting them. Index nodes inside the search ranges use their
+		 * stored count, and only data nodes below index nodes on the edge of
+		 * the ranges are tested against the query.
+		 */
+		private int count(Node node) {
+			int level = (Integer) node.getProperty("level");
+			Containment containment = classifyIndex(node.getProperty("index"), level);
+			if (containment == Containment.OUTSIDE) {
+				return 0;
+			} else if (containment == Containment.INSIDE) {
+				return countAll(node);
 			} else {
-				// FIXME: temp commented
-				//System.err.println("Did not find property '" + propName + "' in node: " + node);
-				keys[i] = NO_PROPERTY;
+				int count = 0;
+				for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+					count += count(rel.getEndNode());
+				}
+				for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+					Node data = rel.getEndNode();
+					if (!isDisabled(data) && query.evaluate(data)) {
+						count++;
+					}
+				}
+				return count;
 			}
-			i++;
 		}
-		Node indexNode = null;
-		try {
-			indexNode = getIndexNode(keys);
-		} catch (IOException e) {
-			System.err.println("Failed to find appropriate index node for value node[" + node + "] with keys" + arrayString(keys)
-					+ ": " + e.getMessage());
-			e.printStackTrace(System.err);
+
+		/**
+		 * Count all enabled data nodes below the index node, using the stored
+		 * count if there is one (indexes built by older versions have none).
+		 */
+		private int countAll(Node node) {
+			Integer stored = (Integer) node.getProperty("count", null);
+			if (stored != null) {
+				return stored;
+			}
+			int count = 0;
+			for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+				count += countAll(rel.getEndNode());
+			}
+			for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+				if (!isDisabled(rel.getEndNode())) {
+					count++;
+				}
+			}
+			return count;
 		}
-		if (indexNode != null) {
-			indexNode.createRelationshipTo(node, AmanziIndexRelationshipTypes.INDEX_LEAF);
-			// TODO: Update statistics in the index?
-		} else {
-			System.err.println("Failed to find appropriate index node for value node[" + node + "] with keys" + arrayString(keys));
+
+		/**
+		 * Add the values of the property in the data nodes below the specified
+		 * index node that match the query to the aggregate.
+		 */
+		private void aggregate(Node node, String property, Aggregate aggregate) {
+			int level = (Integer) node.getProperty("level");
+			Containment containment = classifyIndex(node.getProperty("index"), level);
+			if (containment == Containment.INSIDE) {
+				aggregate.add(aggregateAll(node, property));
+			} else if (containment == Containment.EDGE) {
+				for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+					aggregate(rel.getEndNode(), property, aggregate);
+				}
+				for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+					Node data = rel.getEndNode();
+					Object value = data.getProperty(property, null);
+					if (value instanceof Number && !isDisabled(data) && query.evaluate(data)) {
+						aggregate.add((Number) value);
+					}
+				}
+			}
 		}
-	}
 
-	/**
-	 * This is the main indexing method of the class, finding the index node to
-	 * use for a specific index key int[]. We first search up the cached index
-	 * stack until we find an index that covers the required value. Then we step
-	 * back down creating sub-index nodes as we go until we hit the lowest
-	 * level. With data where nodes coming in are usually near the previous
-	 * nodes, the cache stack will usually contain the right nodes and it will
-	 * not often be required to search high of the stack. This should give very
-	 * good performance for that kind of data.
+		/**
+		 * Aggregate the property over all data nodes below the index node,
+		 * using the statistics on the index node if there are any, or else the
+		 * cached result of a previous walk of the subtree.
+		 */
+		private Aggregate aggregateAll(Node node, String property) {
+			Aggregate aggregate = new Aggregate();
+			if (statistics != null && statistics.getPropertyNames().contains(property)) {
+				aggregate.add(node, property);
+				return aggregate;
+			}
+			String key = node.getId() + ":" + property;
+			Aggregate cached = aggregateCache.get(key);
+			if (cached == null) {
+				collectAll(node, property, aggregate);
+				aggregateCache.put(key, aggregate);
+				cached = aggregate;
+			}
+			return cached;
+		}
+
+		private void collectAll(Node node, String property, Aggregate aggregate) {
+			for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+				collectAll(rel.getEndNode(), property, aggregate);
+			}
+			for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+				Object value = rel.getEndNode().getProperty(property, null);
+				if (value instanceof Number && !isDisabled(rel.getEndNode())) {
+					aggregate.add((Number) value);
+				}
+			}
+		}
+
+		/**
+		 * The state of the walk at one index node: the relationships to the
+		 * nodes below it still to be visited, and whether the index node is
+		 * inside the search ranges, so everything below it matches.
+		 */
+		private class Frame {
+			private final Iterator<Relationship> below;
+			private final int level;
+			private final boolean inside;
+
+			private Frame(Node node, int level, boolean inside) {
+				this.level = level;
+				this.inside = inside;
+				// Only the lowest level of the index links to data nodes
+				this.below = node.getRelationships(level > 0 ? AmanziIndexRelationshipTypes.INDEX_CHILD
+						: AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING).iterator();
+			}
+		}
+
+		/**
+		 * Make the frame for walking below an index node, or null if the index
+		 * node is outside the search ranges. The keys of the index node are
+		 * only tested if its parent is not inside the ranges.
+		 */
+		private Frame makeFrame(Node node, int level, boolean parentInside) {
+			return makeFrame(node, level, parentInside, keys);
+		}
+
+		/**
+		 * Make the frame for walking below an index node, as above, decoding
+		 * its keys into the scratch array of the walker.
+		 */
+		private Frame makeFrame(Node node, int level, boolean parentInside, int[] scratch) {
+			if (parentInside) {
+				return new Frame(node, level, true);
+			}
+			Containment containment = plan.classifyIndex(node.getProperty("index"), level, scratch);
+			if (containment == Containment.OUTSIDE) {
+				return null;
+			}
+			return new Frame(node, level, containment == Containment.INSIDE);
+		}
+
+		/**
+		 * Split the search below the root node into the frames of the in-range
+		 * index nodes of the highest level with at least the requested number
+		 * of them, or of the lowest level if there are never that many. The
+		 * frames are in the order a sequential walk would visit them.
+		 */
+		private ArrayList<Frame> split(Node root, int parts) {
+			ArrayList<Frame> frames = new ArrayList<Frame>();
+			Frame top = makeFrame(root, (Integer) root.getProperty("level"), false);
+			if (top != null) {
+				frames.add(top);
+			}
+			while (frames.size() > 0 && frames.size() < parts && frames.get(0).level > 0) {
+				ArrayList<Frame> children = new ArrayList<Frame>();
+				for (Frame frame : frames) {
+					while (frame.below.hasNext()) {
+						Frame child = makeFrame(frame.below.next().getEndNode(), frame.level - 1, frame.inside);
+						if (child != null) {
+							children.add(child);
+						}
+					}
+				}
+				frames = children;
+			}
+			return frames;
+		}
+
+		/**
+		 * This iterator walks the index tree depth first with an explicit stack
+		 * of frames, one per level, returning the matching data nodes as it
+		 * finds them. Each node is tested once. Index nodes outside the search
+		 * ranges are not entered, index nodes below a node inside the ranges
+		 * are entered without reading their keys, and data nodes are only
+		 * evaluated against the query below index nodes on the edge of the
+		 * ranges. Only data nodes are checked for the 'disabled' state.
+		 */
+		private class SearchWalker implements Iterator<Node> {
+			private final ArrayList<Frame> stack = new ArrayList<Frame>();
+			private final int[] scratch = new int[config.size()];
+			private Node next;
+
+			private SearchWalker(Node root) {
+				this(makeFrame(root, (Integer) root.getProperty("level"), false));
+			}
+
+			private SearchWalker(Frame top) {
+				if (top != null) {
+					stack.add(top);
+				}
+			}
+
+			public boolean hasNext() {
+				if (next == null) {
+					next = findNext();
+				}
+				return next != null;
+			}
+
+			public Node next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Node result = next;
+				next = null;
+				return result;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private Node findNext() {
+				while (!stack.isEmpty()) {
+					Frame frame = stack.get(stack.size() - 1);
+					if (!frame.below.hasNext()) {
+						stack.remove(stack.size() - 1);
+					} else if (frame.level > 0) {
+						Frame child = makeFrame(frame.below.next().getEndNode(), frame.level - 1, frame.inside, scratch);
+						if (child != null) {
+							stack.add(child);
+						}
+					} else {
+						Node data = frame.below.next().getEndNode();
+						if (!isDisabled(data) && (frame.inside || query.evaluate(data))) {
+							return data;
+						}
+					}
+				}
+				return null;
+			}
+		}
+
+		/**
+		 * An index node or data node waiting to be visited by the
+		 * OrderedSearchWalker, with the level 0 key of the order property that
+		 * comes first in the order of the search: the lowest key an index node
+		 * can contain for ascending searches, and the highest for descending
+		 * searches.
+		 */
+		private class OrderedEntry {
+			private final Node node;
+			private final int level; // -1 for data nodes
+			private final boolean inside;
+			private final int key;
+			private final Object value;
+
+			private OrderedEntry(Node node, int level, boolean inside, int key, Object value) {
+				this.node = node;
+				this.level = level;
+				this.inside = inside;
+				this.key = key;
+				this.value = value;
+			}
+		}
+
+		/**
+		 * This iterator returns the matching data nodes in the order of one
+		 * indexed property, ascending or descending. Since the mappers preserve
+		 * the order of the values, the index keys of that property give the
+		 * range of values each index node can contain, and a best first search
+		 * with a priority queue of index and data nodes, ordered by the first
+		 * key of those ranges, returns the data nodes in order, while only
+		 * opening the index nodes that can contain the next result. Index
+		 * nodes come before data nodes with the same key, since they can
+		 * contain values with that key that come first, and data nodes with
+		 * the same key are ordered by their values, so no separate sort of the
+		 * data in a leaf index node is needed. Reading only the first results
+		 * of a large query only searches a small part of the index. Data nodes
+		 * without the property come first in ascending order and last in
+		 * descending order.
+		 */
+		private class OrderedSearchWalker implements Iterator<Node>, Comparator<OrderedEntry> {
+			private final PriorityQueue<OrderedEntry> queue = new PriorityQueue<OrderedEntry>(64, this);
+			private final String property;
+			private final boolean descending;
+			private final int position;
+			private final Mapper<?> mapper;
+			private final KeyCodec codec = config.getKeyCodec();
+			private final int[] scratch = new int[config.size()];
+
+			private OrderedSearchWalker(Node root, String property, boolean descending) {
+				this.property = property;
+				this.descending = descending;
+				this.position = config.getPropertyPosition(property);
+				this.mapper = config.getProperty(property).getMapper();
+				addIndex(root, (Integer) root.getProperty("level"), false);
+			}
+
+			private void addIndex(Node node, int level, boolean parentInside) {
+				Object index = node.getProperty("index");
+				Containment containment = parentInside ? Containment.INSIDE : plan.classifyIndex(index, level, scratch);
+				if (containment != Containment.OUTSIDE) {
+					int key = codec.keyAt(index, position);
+					if (descending) {
+						// The highest key is one below the lowest of the next
+						// index node
+						key = key == Integer.MAX_VALUE ? key : config.valuesFor(new int[] { key + 1 }, level)[0] - 1;
+					} else {
+						key = config.valuesFor(new int[] { key }, level)[0];
+					}
+					queue.add(new OrderedEntry(node, level, containment == Containment.INSIDE, key, null));
+				}
+			}
+
+			private void addData(Node data, boolean parentInside) {
+				if (!isDisabled(data) && (parentInside || query.evaluate(data))) {
+					Object value = data.getProperty(property, null);
+					int key = value == null ? NO_PROPERTY : mapper.keyFor(value);
+					queue.add(new OrderedEntry(data, -1, true, key, value));
+				}
+			}
+
+			public int compare(OrderedEntry a, OrderedEntry b) {
+				if (a.key != b.key) {
+					return (a.key < b.key) != descending ? -1 : 1;
+				} else if (a.level >= 0 || b.level >= 0) {
+					return b.level - a.level;
+				} else if (a.value == null || b.value == null) {
+					return a.value == null ? (b.value == null ? 0 : -1) : 1;
+				} else {
+					int order = mapper.compare(a.value, b.value);
+					return descending ? -order : order;
+				}
+			}
+
+			public boolean hasNext() {
+				while (!queue.isEmpty() && queue.peek().level >= 0) {
+					OrderedEntry entry = queue.poll();
+					if (entry.level > 0) {
+						for (Relationship rel : entry.node.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD,
+								Direction.OUTGOING)) {
+							addIndex(rel.getEndNode(), entry.level - 1, entry.inside);
+						}
+					} else {
+						for (Relationship rel : entry.node.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF,
+								Direction.OUTGOING)) {
+							addData(rel.getEndNode(), entry.inside);
+						}
+					}
+				}
+				return !queue.isEmpty();
+			}
+
+			public Node next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return queue.poll().node;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+
+		/**
+		 * This iterator splits the search into subtrees of the top levels of
+		 * the index, and walks them concurrently with a SearchWalker each on a
+		 * pool of threads, which pass their results in batches to the consumer
+		 * through bounded queues. The data nodes are only read. For ordered
+		 * results each subtree has its own queue, consumed one after the other,
+		 * and otherwise all subtrees share one queue. The threads come from the
+		 * query pool of the index, and as many workers as the parallelism each
+		 * take the next subtree in order until none are left. Since the
+		 * subtrees are taken in order, the subtree being consumed is always
+		 * running, even if later ones are waiting for space in their queues.
+		 */
+		private class ParallelSearchWalker implements Iterator<Node> {
+			private static final int BATCH_SIZE = 100;
+			private final ArrayList<Node> END = new ArrayList<Node>();
+			private final ArrayList<BlockingQueue<ArrayList<Node>>> queues = new ArrayList<BlockingQueue<ArrayList<Node>>>();
+			private final int endsPerQueue;
+			private final ArrayList<Frame> frames;
+			private final AtomicInteger nextFrame = new AtomicInteger();
+			private final ArrayList<Future<?>> workers = new ArrayList<Future<?>>();
+			private final long idleTimeout;
+			private volatile long lastTaken = System.currentTimeMillis();
+			private volatile Throwable failure;
+			private volatile boolean closed;
+			private volatile boolean idle; // closed because nobody took results
+			private int current = 0; // the queue being consumed
+			private int ends = 0; // the ends found in the current queue
+			private ArrayList<Node> batch;
+			private int position = 0;
+
+			private ParallelSearchWalker(Node root, QueryOptions options) {
+				frames = split(root, options.getParallelism() * 4);
+				endsPerQueue = options.isOrdered() ? 1 : frames.size();
+				idleTimeout = options.getIdleTimeout();
+				for (int i = 0; i < (options.isOrdered() ? frames.size() : Math.min(1, frames.size())); i++) {
+					queues.add(new ArrayBlockingQueue<ArrayList<Node>>(options.getQueueSize()));
+				}
+				final boolean ordered = options.isOrdered();
+				ExecutorService executor = getQueryExecutor();
+				for (int i = Math.min(options.getParallelism(), frames.size()); i > 0; i--) {
+					workers.add(executor.submit(new Runnable() {
+						public void run() {
+							for (int next = nextFrame.getAndIncrement(); !closed && next < frames.size(); next = nextFrame
+									.getAndIncrement()) {
+								walk(frames.get(next), queues.get(ordered ? next : 0));
+							}
+						}
+					}));
+				}
+			}
+
+			private void walk(Frame frame, BlockingQueue<ArrayList<Node>> queue) {
+				try {
+					try {
+						SearchWalker walker = new SearchWalker(frame);
+						ArrayList<Node> nodes = new ArrayList<Node>(BATCH_SIZE);
+						while (!closed && walker.hasNext()) {
+							nodes.add(walker.next());
+							if (nodes.size() >= BATCH_SIZE) {
+								put(queue, nodes);
+								nodes = new ArrayList<Node>(BATCH_SIZE);
+							}
+						}
+						if (nodes.size() > 0) {
+							put(queue, nodes);
+						}
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Throwable e) {
+						if (failure == null) {
+							failure = e;
+						}
+					}
+					put(queue, END);
+				} catch (InterruptedException e) {
+					// The consumer closed the results
+				}
+			}
+
+			/**
+			 * Put a batch on a queue, waiting while the queue is full, unless
+			 * the results have been closed, in which case nobody will take it.
+			 * If the consumer has taken nothing from any queue for the idle
+			 * timeout, the results were most likely abandoned without being
+			 * closed, so the search is stopped.
+			 */
+			private void put(BlockingQueue<ArrayList<Node>> queue, ArrayList<Node> nodes) throws InterruptedException {
+				while (!closed) {
+					if (queue.offer(nodes, 100, TimeUnit.MILLISECONDS)) {
+						return;
+					}
+					if (System.currentTimeMillis() - lastTaken > idleTimeout) {
+						idle = true;
+						close();
+					}
+				}
+			}
+
+			public boolean hasNext() {
+				while (batch == null || position >= batch.size()) {
+					if (current >= queues.size()) {
+						return false;
+					}
+					try {
+						batch = null;
+						while (batch == null) {
+							if (idle) {
+								throw new RuntimeException("Stopped searching " + query + " after no results were taken for "
+										+ idleTimeout + "ms");
+							}
+							batch = queues.get(current).poll(100, TimeUnit.MILLISECONDS);
+						}
+						lastTaken = System.currentTimeMillis();
+						position = 0;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException("Interrupted while searching " + query, e);
+					}
+					if (failure != null) {
+						close();
+						throw new RuntimeException("Failed to search " + query + ": " + failure.getMessage(), failure);
+					}
+					if (batch == END && ++ends == endsPerQueue) {
+						current++;
+						ends = 0;
+					}
+				}
+				return true;
+			}
+
+			public Node next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return batch.get(position++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			/** Stop the workers, if the results are no longer wanted */
+			private void close() {
+				closed = true;
+				for (Future<?> worker : workers) {
+					worker.cancel(true);
+				}
+			}
+		}
+
+		public String toString() {
+			return query.toString();
+		}
+	}
+
+	public IndexHits<Node> query(String key, Object queryOrQueryObject) {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	/**
+	 * Remove the data node from the index. Since the node is indexed by all
+	 * the configured properties together, the key and value are ignored, and
+	 * this is the same as remove(Node).
+	 */
+	public void remove(Node entity, String key, Object value) {
+		remove(entity);
+	}
+
+	/**
+	 * Remove the data node from the index. The INDEX_LEAF relationship from
+	 * its level 0 index node is deleted, and the counts and statistics of all
+	 * index nodes above it are reduced. Index nodes left with no data below
+	 * them are deleted, up the INDEX_CHILD chain, so removed data leaves no
+	 * empty branches for later searches to walk. The root of the index tree is
+	 * kept, even if the index is empty.
+	 * <p>
+	 * Unlike disable(Node), which leaves the data node in the index to be
+	 * skipped by every search, removed nodes cost nothing in later queries.
+	 * </p>
+	 * 
+	 * @return true if the node was found in this index and removed
+	 */
+	public boolean remove(Node entity) {
+		Relationship leafRel = findLeafRelationship(entity);
+		if (leafRel == null) {
+			return false;
+		}
+		unlink(leafRel, entity, false);
+		return true;
+	}
+
+	/**
+	 * Reindex a data node after its indexed properties have changed. The index
+	 * key is calculated again from the properties, and only if it differs from
+	 * the key of the level 0 index node the data node is linked to, is the node
+	 * moved to the index node for the new key. Otherwise, which is the common
+	 * case for small changes of value, the node stays where it is, and only the
+	 * statistics of the index nodes above it are recalculated. Since the old
+	 * property values are no longer known, the statistics on the old path are
+	 * always recalculated from the children, rather than reduced by the old
+	 * values. A node not yet in the index is added.
+	 * <p>
+	 * This also brings the counts up to date if the 'state' property of the
+	 * node was changed directly, rather than with disable(Node) or
+	 * enable(Node), since disabled data nodes are not counted.
+	 * </p>
+	 * 
+	 * @return true if the node was moved to another index node, or added
+	 */
+	public boolean update(Node entity) {
+		int[] keys = keysFor(entity);
+		Relationship leafRel = findLeafRelationship(entity);
+		if (leafRel == null) {
+			add(entity, keys);
+			return true;
+		}
+		Node node = leafRel.getStartNode();
+		if (Arrays.equals(keys, config.getKeyCodec().decode(node.getProperty("index")))) {
+			if (!aggregateCache.isEmpty()) {
+				aggregateCache.clear();
+			}
+			// The change in count if the node was disabled or enabled
+			int change = 0;
+			if (isDisabled(entity) && !leafRel.hasProperty(UNCOUNTED)) {
+				leafRel.setProperty(UNCOUNTED, true);
+				change = -1;
+			} else if (!isDisabled(entity) && leafRel.hasProperty(UNCOUNTED)) {
+				leafRel.removeProperty(UNCOUNTED);
+				change = 1;
+			}
+			for (; node != null; node = getParentIndexNode(node)) {
+				if (change != 0 && node.hasProperty("count")) {
+					node.setProperty("count", Math.max((Integer) node.getProperty("count") + change, 0));
+				}
+				if (statistics != null) {
+					statistics.recalculate(node);
+				}
+			}
+			return false;
+		}
+		unlink(leafRel, entity, true);
+		add(entity, keys);
+		return true;
+	}
+
+	/**
+	 * Mark the data node 'disabled', so that it is no longer found by searches
+	 * of any index, and remove it from the counts and statistics of this
+	 * index. Unlike remove(Node), the node stays linked into the index tree,
+	 * and can be enabled again with enable(Node), until the index is
+	 * compacted.
+	 * 
+	 * @return true if the node was not already disabled
+	 */
+	public boolean disable(Node entity) {
+		if (isDisabled(entity)) {
+			return false;
+		}
+		entity.setProperty("state", "disabled");
+		update(entity);
+		return true;
+	}
+
+	/**
+	 * Clear the 'disabled' state of the data node, so that it is found by
+	 * searches again, and add it back to the counts and statistics of this
+	 * index.
+	 * 
+	 * @return true if the node was disabled
+	 */
+	public boolean enable(Node entity) {
+		if (!isDisabled(entity)) {
+			return false;
+		}
+		entity.removeProperty("state");
+		update(entity);
+		return true;
+	}
+
+	/** @return true if the data node is marked 'disabled' */
+	private static boolean isDisabled(Node data) {
+		return "disabled".equals(data.getProperty("state", null));
+	}
+
+	/**
+	 * Delete the INDEX_LEAF relationship of the data node, and reduce the
+	 * counts and statistics of the index nodes above it, deleting those left
+	 * empty. The statistics are reduced by the current values of the data
+	 * node, unless they are to be recalculated, because the values have
+	 * changed since the node was indexed. Data nodes that were not counted,
+	 * because they were disabled, only need the empty index nodes deleted.
+	 */
+	private void unlink(Relationship leafRel, Node entity, boolean recalculate) {
+		Node node = leafRel.getStartNode();
+		boolean counted = !leafRel.hasProperty(UNCOUNTED);
+		leafRel.delete();
+		if (!aggregateCache.isEmpty()) {
+			aggregateCache.clear();
+		}
+		boolean pruned = false;
+		while (node != null) {
+			Relationship parentRel = node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING);
+			Node parent = parentRel == null ? null : parentRel.getStartNode();
+			// Only index nodes with nothing at all below them are deleted, since
+			// the counts do not include disabled data nodes, and indexes built
+			// by older versions have no counts
+			if (parent != null && !node.hasRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)
+					&& !node.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)
+					&& !node.hasRelationship(AmanziIndexRelationshipTypes.INDEX_ROOT, Direction.INCOMING)) {
+				parentRel.delete();
+				node.delete();
+				childCache.remove(parent);
+				pruned = true;
+			} else if (counted) {
+				if (node.hasProperty("count")) {
+					node.setProperty("count", Math.max((Integer) node.getProperty("count") - 1, 0));
+				}
+				if (statistics != null) {
+					if (recalculate) {
+						statistics.recalculate(node);
+					} else {
+						statistics.remove(node, entity);
+					}
+				}
+			}
+			node = parent;
+		}
+		if (pruned) {
+			clearCachedLevels();
+		}
+	}
+
+	/** @return the parent of the index node, or null for the root */
+	private Node getParentIndexNode(Node node) {
+		Relationship parentRel = node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING);
+		return parentRel == null ? null : parentRel.getStartNode();
+	}
+
+	/**
+	 * Compact the index tree, reclaiming the space and search time used by
+	 * dead entries. Data nodes marked 'disabled' are unlinked from the index,
+	 * index nodes with no data below them are deleted, and the counts and
+	 * statistics of the remaining index nodes are recalculated from the bottom
+	 * up. Removing nodes with remove(Node) leaves no empty branches, but
+	 * indexes that used the 'disabled' state for deletion, or were built
+	 * before remove(Node) existed, can have many, so this can be run
+	 * periodically on indexes with heavy churn.
+	 * 
+	 * @return the number of index nodes deleted
+	 */
+	public int compact() {
+		Node root = getRootIndexNode();
+		if (root == null) {
+			return 0;
+		}
+		int[] deleted = new int[1];
+		Transaction tx = db.beginTx();
+		try {
+			compact(root, deleted);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		childCache.clear();
+		aggregateCache.clear();
+		clearCachedLevels();
+		return deleted[0];
+	}
+
+	/**
+	 * Compact the subtree below the index node, as described in compact(), and
+	 * return the number of data nodes left in it.
+	 */
+	private int compact(Node node, int[] deleted) {
+		int count = 0;
+		for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+			Node child = rel.getEndNode();
+			int childCount = compact(child, deleted);
+			if (childCount == 0 && !child.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)
+					&& !child.hasRelationship(AmanziIndexRelationshipTypes.INDEX_ROOT, Direction.INCOMING)) {
+				rel.delete();
+				child.delete();
+				deleted[0]++;
+			} else {
+				count += childCount;
+			}
+		}
+		for (Relationship rel : node.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+			if (isDisabled(rel.getEndNode())) {
+				rel.delete();
+			} else {
+				rel.removeProperty(UNCOUNTED);
+				count++;
+			}
+		}
+		node.setProperty("count", count);
+		if (statistics != null) {
+			statistics.recalculate(node);
+		}
+		return count;
+	}
+
+	/**
+	 * Find the INDEX_LEAF relationship linking the data node into this index.
+	 * A data node can be in several indexes, so the index tree above each of
+	 * its INDEX_LEAF relationships is followed up to its root.
+	 */
+	private Relationship findLeafRelationship(Node entity) {
+		Node root = getRootIndexNode();
+		if (root != null) {
+			for (Relationship rel : entity.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING)) {
+				Node node = rel.getStartNode();
+				Relationship parentRel;
+				while ((parentRel = node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING)) != null) {
+					node = parentRel.getStartNode();
+				}
+				if (node.equals(root)) {
+					return rel;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the top node of the index tree, which is the top cached level
+	 *         while indexing, or null if there is no index tree
+	 */
+	private Node getRootIndexNode() {
+		if (levels.size() > 0) {
+			return levels.get(levels.size() - 1).getIndexNode();
+		}
+		Relationship rootRel = findIndexNode().getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_ROOT, Direction.OUTGOING);
+		return rootRel == null ? null : rootRel.getEndNode();
+	}
+
+	/**
+	 * Forget the cached index nodes of all levels below the top, since they
+	 * might have been deleted. They are found again by the next add(Node).
+	 */
+	private void clearCachedLevels() {
+		for (int level = 0; level < levels.size() - 1; level++) {
+			levels.get(level).clearIndexNode();
+		}
+	}
+
+	/**
+	 * This is the man indexing method of this class. It adds the specified node
+	 * to the index. Firstly it uses the PropertyConfig of this index to find
+	 * the required properties of the node to be indexed, and then it converts
+	 * these to the internal int[] used as the index key, using the Mappers
+	 * configured in the PropertyConfig. Then the node is finally attached to
+	 * the appropriate index node based on the index key int[]. It is possible,
+	 * based on how the index was configured, for this node to be processed
+	 * later, and held temporarily in a cache. If that happens, expect it to be
+	 * added to the tree at some later add(Node) call, or at the end in the
+	 * finishUp() method (which calls flush() to add the cached nodes to the
+	 * tree).
+	 * <p>
+	 * If a configured property does not exist on the node, the special value if
+	 * NO_PROPERTY is used. This is the value Integer.MIN_VALUE, and allows the
+	 * node to be indexed without that property. In later searches if the query
+	 * includes that property, such nodes can be ignored from the results.
+	 * </p>
+	 * 
+	 * @param node
+	 *            Node to index
+	 */
+	public void add(Node node) {
+		add(node, keysFor(node));
+	}
+
+	/**
+	 * Add a collection of nodes to the index in bulk. Instead of indexing each
+	 * node as it arrives, the nodes are held in a staging buffer together with
+	 * their index keys. Each time the buffer reaches the configured batch size
+	 * (see setBatchSize(int)), it is sorted into index tree order and then
+	 * added to the tree by flush(). Since consecutive nodes then mostly fall
+	 * into the same index nodes, the cached IndexLevel stack is hit almost
+	 * every time, and very few searches of the tree are needed. This makes a
+	 * big difference for data that arrives in an order unrelated to the
+	 * indexed properties. Any remaining nodes are flushed before this method
+	 * returns.
+	 * 
+	 * @param nodes
+	 *            the nodes to index
+	 */
+	public void addAll(Iterable<Node> nodes) {
+		for (Node node : nodes) {
+			nodesToIndex.add(new StagedNode(node, keysFor(node)));
+			if (nodesToIndex.size() >= batchSize) {
+				flushStaged();
+			}
+		}
+		flushStaged();
+	}
+
+	/**
+	 * Add a collection of nodes to the index in bulk, as addAll(Iterable), but
+	 * with several threads writing to the index tree at once. Each sorted
+	 * batch of staged nodes is split into groups by the index node they fall
+	 * under at the highest level that gives enough groups for the threads.
+	 * The path of index nodes down to that level is found or created first,
+	 * and then each group is added below its own index node by a separate
+	 * thread, with its own stack of index levels, child lookup cache and
+	 * transaction. Since the threads never write to the same index nodes, they
+	 * do not wait for each other, and the throughput scales with the number of
+	 * threads. Finally the counts and statistics of the few shared index nodes
+	 * above the groups are recalculated from their children.
+	 * <p>
+	 * If a thread fails, its group is rolled back, but the groups of the other
+	 * threads stay committed, so the shared index nodes are still recounted
+	 * before the failure is thrown, and the index stays consistent, without
+	 * the nodes of the failed group.
+	 * </p>
+	 * <p>
+	 * The index keys are calculated by the calling thread, since the whole
+	 * batch is needed to sort and split it. Each thread commits its
+	 * own transaction, so the data nodes must already be committed, and this
+	 * must not be called within another transaction. As usual, finishUp()
+	 * must be called afterwards.
+	 * </p>
+	 * 
+	 * @param nodes
+	 *            the nodes to index
+	 * @param parallelism
+	 *            the number of threads adding nodes
+	 */
+	public void addAll(Iterable<Node> nodes, int parallelism) {
+		parallelism = Math.max(1, parallelism);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AmanziIndex writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for (Node node : nodes) {
+				nodesToIndex.add(new StagedNode(node, keysFor(node)));
+				if (nodesToIndex.size() >= batchSize) {
+					flushStaged(executor, parallelism);
+				}
+			}
+			flushStaged(executor, parallelism);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Add the staging buffer to the tree with the threads of the executor, as
+	 * described in addAll(Iterable, int), and clear it.
+	 */
+	private void flushStaged(ExecutorService executor, int parallelism) {
+		if (nodesToIndex.size() == 0) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		ArrayList<ArrayList<StagedNode>> groups;
+		ArrayList<Node> splitNodes = new ArrayList<Node>();
+		int splitLevel;
+		Transaction tx = db.beginTx();
+		try {
+			// The cached levels below the top are not kept up to date by the
+			// threads, and the top level must include all staged nodes
+			clearCachedLevels();
+			for (StagedNode staged : nodesToIndex) {
+				getTopLevelIncluding(staged.keys);
+			}
+			int top = levels.size() - 1;
+			Collections.sort(nodesToIndex, new TreeOrderComparator(top));
+			splitLevel = top;
+			groups = groupStaged(top, top);
+			while (splitLevel > 0 && groups.size() < parallelism * 4) {
+				groups = groupStaged(--splitLevel, top);
+			}
+			for (ArrayList<StagedNode> group : groups) {
+				int[] keys = group.get(0).keys;
+				splitNodes.add(stepDown(levels, getLevelIncluding(levels, top, keys), splitLevel, keys));
+			}
+			tx.success();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to split the index '" + name + "' for parallel indexing: " + e.getMessage(), e);
+		} finally {
+			tx.finish();
+		}
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int i = 0; i < groups.size(); i++) {
+			final Node splitNode = splitNodes.get(i);
+			final int level = splitLevel;
+			final ArrayList<StagedNode> group = groups.get(i);
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					addGroup(splitNode, level, group);
+					return null;
+				}
+			}));
+		}
+		try {
+			// Wait for all groups, even if one fails, since the groups that
+			// succeed are committed and must be counted
+			RuntimeException failure = null;
+			for (Future<Object> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while indexing " + name, e);
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = new RuntimeException("Failed to index " + name + ": " + e.getCause().getMessage(), e.getCause());
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			countFlushed += nodesToIndex.size();
+		} finally {
+			recount(splitNodes);
+			// The threads added children the child cache does not know about
+			childCache.clear();
+			aggregateCache.clear();
+			timeFlushed += System.currentTimeMillis() - start;
+			nodesToIndex.clear();
+		}
+	}
+
+	/**
+	 * Recalculate the counts and statistics of the shared index nodes above
+	 * the split nodes, level by level, from their children. This is done in
+	 * its own transaction after the groups are committed, whether or not they
+	 * all succeeded.
+	 */
+	private void recount(ArrayList<Node> splitNodes) {
+		Transaction tx = db.beginTx();
+		try {
+			LinkedHashSet<Node> nodes = new LinkedHashSet<Node>(splitNodes);
+			while (nodes.size() > 0) {
+				LinkedHashSet<Node> parents = new LinkedHashSet<Node>();
+				for (Node node : nodes) {
+					Node parent = getParentIndexNode(node);
+					if (parent != null) {
+						parents.add(parent);
+					}
+				}
+				for (Node parent : parents) {
+					int count = 0;
+					for (Relationship rel : parent.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+						count += (Integer) rel.getEndNode().getProperty("count", 0);
+					}
+					parent.setProperty("count", count);
+					if (statistics != null) {
+						statistics.recalculate(parent);
+					}
+				}
+				nodes = parents;
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	/**
+	 * Split the sorted staging buffer into the groups of nodes with the same
+	 * index node at the split level, which are the runs of nodes with the
+	 * same keys at all levels from the split level to the top level.
+	 */
+	private ArrayList<ArrayList<StagedNode>> groupStaged(int splitLevel, int top) {
+		ArrayList<ArrayList<StagedNode>> groups = new ArrayList<ArrayList<StagedNode>>();
+		ArrayList<StagedNode> group = null;
+		StagedNode previous = null;
+		for (StagedNode staged : nodesToIndex) {
+			boolean same = previous != null;
+			for (int level = top; level >= splitLevel && same; level--) {
+				for (int i = 0; i < staged.keys.length && same; i++) {
+					same = config.keyFor(staged.keys[i], level) == config.keyFor(previous.keys[i], level);
+				}
+			}
+			if (!same) {
+				group = new ArrayList<StagedNode>();
+				groups.add(group);
+			}
+			group.add(staged);
+			previous = staged;
+		}
+		return groups;
+	}
+
+	/**
+	 * Add a group of staged nodes below the index node at the split level,
+	 * with a separate stack of index levels and child lookup cache, and in a
+	 * separate transaction. This is run by the threads of addAll(Iterable,
+	 * int), and only writes to the index nodes below the split node, which no
+	 * other thread writes to.
+	 */
+	private void addGroup(Node splitNode, int splitLevel, ArrayList<StagedNode> group) throws IOException {
+		ChildLookupCache groupCache = new ChildLookupCache(config.getKeyCodec());
+		ArrayList<IndexLevel> groupLevels = new ArrayList<IndexLevel>();
+		for (int level = 0; level < splitLevel; level++) {
+			groupLevels.add(new IndexLevel(level, config, groupCache));
+		}
+		groupLevels.add(new IndexLevel(config, splitNode, groupCache));
+		Transaction tx = db.beginTx();
+		try {
+			for (StagedNode staged : group) {
+				Node indexNode = stepDown(groupLevels, getLevelIncluding(groupLevels, splitLevel, staged.keys), 0, staged.keys);
+				link(indexNode, staged.node, groupLevels);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	/**
+	 * Link the data node below the level 0 index node, and add it to the
+	 * counts and statistics of the index nodes of the levels above it. A
+	 * disabled data node is linked, so that it can be enabled again, but is
+	 * marked as not counted.
+	 */
+	private void link(Node indexNode, Node node, ArrayList<IndexLevel> path) {
+		Relationship leafRel = indexNode.createRelationshipTo(node, AmanziIndexRelationshipTypes.INDEX_LEAF);
+		if (isDisabled(node)) {
+			leafRel.setProperty(UNCOUNTED, true);
+			return;
+		}
+		for (IndexLevel level : path) {
+			level.incrementCount();
+			if (statistics != null) {
+				statistics.add(level.getIndexNode(), node);
+			}
+		}
+	}
+
+	/**
+	 * Set the number of nodes held in the staging buffer used by
+	 * addAll(Iterable) before they are sorted and added to the index tree.
+	 * Larger buffers result in better ordering and more cache hits, at the
+	 * cost of more memory.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize > 0 ? batchSize : 1;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Convert the configured properties of the node into the int[] index key,
+	 * using the Mappers configured in the PropertyConfig.
+	 */
+	private int[] keysFor(Node node) {
+		int[] keys = new int[config.size()];
+		int i = 0;
+		for (PropertyConfig<?> property : config.getProperties()) {
+			String propName = property.getName();
+			if (node.hasProperty(propName)) {
+				Mapper<?> mapper = property.getMapper();
+				int key = mapper.toKey(node.getProperty(propName));
+				keys[i] = key;
+			} else {
+				// FIXME: temp commented
+				//System.err.println("Did not find property '" + propName + "' in node: " + node);
+				keys[i] = NO_PROPERTY;
+			}
+			i++;
+		}
+		return keys;
+	}
+
+	private void add(Node node, int[] keys) {
+		Node indexNode = null;
+		try {
+			indexNode = getIndexNode(keys);
+		} catch (IOException e) {
+			System.err.println("Failed to find appropriate index node for value node[" + node + "] with keys" + arrayString(keys)
+					+ ": " + e.getMessage());
+			e.printStackTrace(System.err);
+		}
+		if (indexNode != null) {
+			// Any cached subtree aggregate could include the new node
+			if (!aggregateCache.isEmpty()) {
+				aggregateCache.clear();
+			}
+			// The cached levels are the path from this leaf to the top of the
+			// tree, so they are the index nodes whose counts have changed
+			link(indexNode, node, levels);
+		} else {
+			System.err.println("Failed to find appropriate index node for value node[" + node + "] with keys" + arrayString(keys));
+		}
+	}
+
+	/**
+	 * This is the main indexing method of the class, finding the index node to
+	 * use for a specific index key int[]. We first search up the cached index
+	 * stack until we find an index that covers the required value. Then we step
+	 * back down creating sub-index nodes as we go until we hit the lowest
+	 * level. With data where nodes coming in are usually near the previous
+	 * nodes, the cache stack will usually contain the right nodes and it will
+	 * not often be required to search high of the stack. This should give very
+	 * good performance for that kind of data.
 	 * 
 	 * @param value
 	 *            of the specific type being indexed
@@ -709,38 +2157,24 @@ public class AmanziIndex implements PreparedIndex<Node> {
 	 * @throws IOException
 	 */
 	private Node getIndexNode(int[] keys) throws IOException {
-		// +. TODO: by KK 
-		// 1. Add node indexed data to the parameters
-		
-		
-		
 		// search as high as necessary to find a node that covers this value
 		IndexLevel indexLevel = getLevelIncluding(keys);
 		// now step down building index all the way to the bottom
-		while (indexLevel.getLevel() > 0) {
-			// FIXME: tmp by KK
-			// 1. Get the index node on the current level
-			Node node = indexLevel.getIndexNode();
-			
-			// 2. Get the function nodes for the index node, see to IndexLevel.java of
-			//    creating new function nodes 
-			// 3. for loop the indexed data, for the update of the function nodes
-			// Node funcNode = 
-			// String funcNodeName = (String) funcNode.getPorperty("name");
-			// String funcNodeType = (String) funcNode.getPorperty("property_type");
-			// String value = data.getProperty(funcNodeName);
-			// if (funcNodeType.equalsIgnoreCase())
-			// 3.1 Numbers, cast value to Integra: [min,max,sum?,avaerage?;count]
-			//   funcNode.update(Integer/Long/Float);
-			// 3.2 String / ListString: [funcNode.getproperty()=>HashMap; HashMap.containsKey() ? HashMap.put(key, value) : HashMap.put(key, 1);
-			// 	 funcNode.update(String);
-			// for (String propKey : data.getPropertyKeys()) {
-			// 		Object val = node.getProperty(propKey);
-			// }
-			
-			
-			// FIXME: tmp by KK
-			
+		return stepDown(levels, indexLevel, 0, keys);
+	}
+
+	/**
+	 * Step down the cached index stack from the index level, setting the keys
+	 * in each lower level, which finds or creates the index node for them
+	 * below the index node of the level above, until the bottom level is
+	 * reached.
+	 * 
+	 * @return the index node of the bottom level for the keys
+	 * @throws IOException
+	 */
+	private static Node stepDown(ArrayList<IndexLevel> levels, IndexLevel indexLevel, int bottom, int[] keys)
+			throws IOException {
+		while (indexLevel.getLevel() > bottom) {
 			IndexLevel lowerLevel = levels.get(indexLevel.getLevel() - 1);
 			// Set the value in the lower level to the desired value to index,
 			// this removes internal
@@ -749,9 +2183,6 @@ public class AmanziIndex implements PreparedIndex<Node> {
 			lowerLevel.setKeys(indexLevel, keys);
 			// Finally step down one level and repeat until we're at the bottom
 			indexLevel = lowerLevel;
-			
-			// TODO: for indexNode at each level, update the function aggregation values
-			
 		}
 		return indexLevel.getIndexNode();
 	}
@@ -767,6 +2198,14 @@ public class AmanziIndex implements PreparedIndex<Node> {
 	 * the passed in value. This in effect means the index is forced to be
 	 * related to the previous data, ensuring no disconnected graphs in the
 	 * index tree.
+	 * <p>
+	 * Since the key ranges of the levels are centred on the origin, the range
+	 * of an index node does not always lie within the range of its parent, so
+	 * a level can include the value while a level above it does not. The
+	 * value is only placed below a level if all levels above it include it
+	 * too, so that every data node below an index node has the keys of that
+	 * index node at its level, which the searches rely on.
+	 * </p>
 	 * 
 	 * @param value
 	 *            to index
@@ -774,11 +2213,39 @@ public class AmanziIndex implements PreparedIndex<Node> {
 	 * @throws IOException
 	 */
 	private IndexLevel getLevelIncluding(int[] keys) throws IOException {
-		int level = 0;
-		IndexLevel indexLevel = null;
-		do {
-			indexLevel = getLevel(level++);
-		} while (!indexLevel.includes(keys));
+		return getLevelIncluding(levels, getTopLevelIncluding(keys).getLevel(), keys);
+	}
+
+	/**
+	 * Add levels until the top level of the cached index stack includes the
+	 * value, and return the top level.
+	 * 
+	 * @throws IOException
+	 */
+	private IndexLevel getTopLevelIncluding(int[] keys) throws IOException {
+		getLevel(0);
+		while (!getLevel(-1).includes(keys)) {
+			getLevel(levels.size());
+		}
+		return getLevel(-1);
+	}
+
+	/**
+	 * Search down the cached index stack from the top level, which must
+	 * include the value, for the lowest level with all levels above it
+	 * including the value, and an index node that has not been forgotten
+	 * after removals. The levels below it are cleared, to have their index
+	 * nodes found again below it.
+	 */
+	private static IndexLevel getLevelIncluding(ArrayList<IndexLevel> levels, int top, int[] keys) {
+		int level = top;
+		while (level > 0 && levels.get(level - 1).includes(keys) && levels.get(level - 1).getIndexNode() != null) {
+			level--;
+		}
+		IndexLevel indexLevel = levels.get(level);
+		for (int below = 0; below < level; below++) {
+			levels.get(below).clearIndexNode();
+		}
 		return indexLevel;
 	}
 
@@ -800,7 +2267,7 @@ public class AmanziIndex implements PreparedIndex<Node> {
 			if (iLev == 0) {
 				// When creating the very first level, use the origin point, and
 				// no child index node
-				levels.add(new IndexLevel(iLev, config, db));
+				levels.add(new IndexLevel(iLev, config, db, childCache));
 			} else {
 				// All higher levels are build on top of the lower levels (using
 				// the same current
@@ -821,15 +2288,87 @@ public class AmanziIndex implements PreparedIndex<Node> {
 	 * @throws IOException
 	 */
 	public Node flush() throws IOException {
-		// TODO: Base this on actual caches
-		ArrayList<Node> nodesToIndex = new ArrayList<Node>();
-		for (Node node : nodesToIndex) {
-			add(node);
-		}
-		nodesToIndex.clear();
+		flushStaged();
 		return levels.size() > 0 ? levels.get(0).getIndexNode() : null;
 	}
 
+	/**
+	 * Sort the staging buffer into index tree order, add all nodes in it to the
+	 * tree and clear it, keeping track of the time taken so that the indexing
+	 * throughput can be reported. The levels are first added up to the top
+	 * level including all staged nodes, so that they are sorted from the level
+	 * of the root they will be added under.
+	 */
+	private void flushStaged() {
+		if (nodesToIndex.size() > 0) {
+			long start = System.currentTimeMillis();
+			try {
+				for (StagedNode staged : nodesToIndex) {
+					getTopLevelIncluding(staged.keys);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to add levels to the index '" + name + "': " + e.getMessage(), e);
+			}
+			Collections.sort(nodesToIndex, new TreeOrderComparator(levels.size() - 1));
+			for (StagedNode staged : nodesToIndex) {
+				add(staged.node, staged.keys);
+			}
+			countFlushed += nodesToIndex.size();
+			timeFlushed += System.currentTimeMillis() - start;
+			nodesToIndex.clear();
+		}
+	}
+
+	/** @return the total number of nodes added to the index by flush() */
+	public long getFlushedCount() {
+		return countFlushed;
+	}
+
+	/**
+	 * @return the indexing rate, in nodes per second, achieved by all calls to
+	 *         flush() so far
+	 */
+	public double getFlushRate() {
+		return timeFlushed > 0 ? 1000.0 * countFlushed / timeFlushed : 0;
+	}
+
+	private static class StagedNode {
+		private final Node node;
+		private final int[] keys;
+
+		private StagedNode(Node node, int[] keys) {
+			this.node = node;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * This comparator orders staged nodes the way the index tree is built,
+	 * comparing the keys at the highest level first, and then at each lower
+	 * level in turn. This is a Morton-like ordering with the index step as the
+	 * base, so that consecutive nodes share as many index nodes as possible.
+	 */
+	private class TreeOrderComparator implements Comparator<StagedNode> {
+		private final int topLevel;
+
+		private TreeOrderComparator(int topLevel) {
+			this.topLevel = Math.max(topLevel, 0);
+		}
+
+		public int compare(StagedNode a, StagedNode b) {
+			for (int level = topLevel; level >= 0; level--) {
+				for (int i = 0; i < a.keys.length; i++) {
+					int ka = config.keyFor(a.keys[i], level);
+					int kb = config.keyFor(b.keys[i], level);
+					if (ka != kb) {
+						return ka < kb ? -1 : 1;
+					}
+				}
+			}
+			return 0;
+		}
+	}
+
 	public void finishUp() {
 		// Update the configurations
 		updateConfig();
@@ -858,19 +2397,25 @@ public class AmanziIndex implements PreparedIndex<Node> {
 
 	private void loadLevels() {
 		levels.clear();
+		childCache.clear();
 		Relationship rootRel = indexNode.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_ROOT, Direction.OUTGOING);
 		if (rootRel != null) {
 			Node currentIndexNode = rootRel.getEndNode();
-			levels.add(new IndexLevel(config, currentIndexNode));
+			levels.add(new IndexLevel(config, currentIndexNode, childCache));
+			int[] origin = new int[config.size()];
 			while (levels.get(0).getLevel() > 0) {
 				IndexLevel indexLevel = null;
-				for (Relationship rel : currentIndexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD,
-						Direction.OUTGOING)) {
-					Node node = rel.getEndNode();
-					indexLevel = new IndexLevel(config, node);
+				// Loading the children into the cache also finds the origin
+				Node node = childCache.getChild(currentIndexNode, origin);
+				if (node == null) {
+					for (Relationship rel : currentIndexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD,
+							Direction.OUTGOING)) {
+						node = rel.getEndNode();
+					}
+				}
+				if (node != null) {
+					indexLevel = new IndexLevel(config, node, childCache);
 					currentIndexNode = node;
-					if (indexLevel.isOrigin())
-						break;
 				}
 				if (indexLevel != null) {
 					levels.add(0, indexLevel);
@@ -1000,7 +2545,7 @@ public class AmanziIndex implements PreparedIndex<Node> {
 			Object property = node.getProperty(key);
 			if (key.equals("index")) {
 				try {
-					property = arrayString((int[]) property);
+					property = arrayString(config.getKeyCodec().decode(property));
 				} catch (Exception e) {
 				}
 			}
@@ -0,0 +1,144 @@
+package org.amanzi.index;
+
+/**
+ * Options controlling how AmanziIndex.query(QueryOptions, Object) produces its
+ * results. The default options give the same results as query(Object).
+ * <p>
+ * With a parallelism greater than one, the in-range subtrees of the top levels
+ * of the index are searched concurrently on a pool of that many threads, and
+ * the matching data nodes are passed to the IndexHits iterator through a
+ * bounded queue. Unordered results are returned as soon as any thread finds
+ * them, while ordered results are returned in the same order as a sequential
+ * search, at the cost of buffering the results of later subtrees. If the
+ * consumer stops taking results without closing the IndexHits, for example by
+ * breaking out of a loop over them, the threads stop once their queues have
+ * been full for the idle timeout. The threads are shared by all parallel
+ * queries of the AmanziIndex instance.
+ * </p>
+ * <p>
+ * The search threads run outside the transaction of the caller, so a parallel
+ * search only finds committed data. Nodes added, changed or indexed in a
+ * transaction that is still open are not seen, and the results then differ
+ * from query(Object), so commit before searching in parallel.
+ * </p>
+ * <p>
+ * Results can be ordered by one of the indexed properties, which is done by
+ * visiting the index nodes in the order of their keys for that property, so
+ * only as much of the index is searched as is needed for the results actually
+ * read. The order can be ascending or descending, and data nodes without the
+ * property come first in ascending order, and last in descending order.
+ * Ordered results are always searched by a single thread. The offset skips the
+ * first results and the limit ends the results early, and together with the
+ * ordering they allow top-K queries without searching the whole index.
+ * </p>
+ */
+public class QueryOptions {
+	public static final int DEFAULT_QUEUE_SIZE = 100;
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+	private int parallelism = 1;
+	private boolean ordered = true;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private int offset = 0;
+	private int limit = -1;
+	private String orderBy;
+	private boolean descending = false;
+
+	/** Set the number of threads searching the index, where 1 means no threads */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Set whether the results of a parallel search must be returned in the
+	 * order of a sequential search
+	 */
+	public void setOrdered(boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	/**
+	 * Set the number of batches of results each queue of a parallel search can
+	 * hold before the searching threads wait for the consumer
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Set the milliseconds the threads of a parallel search wait for the
+	 * consumer to take a batch of results, before deciding the results were
+	 * abandoned and stopping. A consumer returning after that gets an
+	 * exception from the IndexHits.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = Math.max(1, idleTimeout);
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/** Set the number of results to skip */
+	public void setOffset(int offset) {
+		this.offset = Math.max(0, offset);
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	/** Set the maximum number of results, where a negative limit means no limit */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Set the indexed property to order the results by, or null for the
+	 * order of the index tree. The mapper of the property must keep the order
+	 * of the values in its keys, so properties mapped by a ListStringMapper
+	 * cannot be used.
+	 */
+	public void setOrderBy(String orderBy) {
+		setOrderBy(orderBy, false);
+	}
+
+	/**
+	 * Set the indexed property to order the results by, and whether they are
+	 * in descending order
+	 */
+	public void setOrderBy(String orderBy, boolean descending) {
+		this.orderBy = orderBy;
+		this.descending = descending;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	public String getOrderBy() {
+		return orderBy;
+	}
+
+	public String toString() {
+		return "QueryOptions[parallelism=" + parallelism + ", ordered=" + ordered + ", offset=" + offset + ", limit=" + limit
+				+ ", orderBy=" + orderBy
+				+ (descending ? " desc" : "") + "]";
+	}
+}
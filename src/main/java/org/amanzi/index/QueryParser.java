@@ -0,0 +1,264 @@
+package org.amanzi.index;
+
+import java.util.ArrayList;
+
+import org.amanzi.index.AmanziIndex.AndCondition;
+import org.amanzi.index.AmanziIndex.EqualsCondition;
+import org.amanzi.index.AmanziIndex.GreaterThanCondition;
+import org.amanzi.index.AmanziIndex.GreaterThanOrEqualsCondition;
+import org.amanzi.index.AmanziIndex.LessThanCondition;
+import org.amanzi.index.AmanziIndex.LessThanOrEqualsCondition;
+import org.amanzi.index.AmanziIndex.NotCondition;
+import org.amanzi.index.AmanziIndex.OrCondition;
+import org.amanzi.index.AmanziIndex.QueryCondition;
+import org.amanzi.index.config.IndexConfig;
+import org.amanzi.index.config.PropertyConfig;
+
+/**
+ * This parser converts query strings into trees of QueryCondition instances.
+ * The syntax supports the comparison operators ==, =, !=, &lt;&gt;, &lt;,
+ * &lt;=, &gt; and &gt;=, the IN and BETWEEN operators, and AND, OR and NOT with
+ * the usual precedence (NOT binds tightest, then AND, then OR), as well as
+ * parentheses. Keywords are not case sensitive. For example:
+ *
+ * <pre>
+ * (lac BETWEEN 100 AND 200 OR lac IN (7, 9)) and NOT cause == 16
+ * </pre>
+ *
+ * Property names can contain spaces, like 'RNC PC', and values containing
+ * spaces or operator characters can be quoted with single or double quotes. The
+ * values are parsed with the mapper of the property. IN lists are converted to
+ * an OR of equality conditions, and BETWEEN to an AND of &gt;= and &lt;=
+ * conditions, both inclusive.
+ */
+public class QueryParser {
+	private static final String OPERATOR_CHARS = "=!<>";
+	private static final String SPECIAL_CHARS = "()," + OPERATOR_CHARS + "'\"";
+	private final IndexConfig config;
+	private String query;
+	private ArrayList<Token> tokens;
+	private int position;
+
+	private static enum Type {
+		WORD, QUOTED, OPERATOR, OPEN, CLOSE, COMMA, END;
+	}
+
+	private static class Token {
+		private final Type type;
+		private final String text;
+		private final int start;
+		private final int end;
+
+		private Token(Type type, String text, int start, int end) {
+			this.type = type;
+			this.text = text;
+			this.start = start;
+			this.end = end;
+		}
+
+		private boolean isKeyword(String keyword) {
+			return type == Type.WORD && text.equalsIgnoreCase(keyword);
+		}
+
+		private boolean isKeyword() {
+			return isKeyword("AND") || isKeyword("OR") || isKeyword("NOT") || isKeyword("IN") || isKeyword("BETWEEN");
+		}
+
+		public String toString() {
+			return type == Type.END ? "end of query" : "'" + text + "'";
+		}
+	}
+
+	public QueryParser(IndexConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * Parse the query string into a QueryCondition tree. Instances are not
+	 * thread safe.
+	 *
+	 * @throws RuntimeException
+	 *             if the query is not valid
+	 */
+	public QueryCondition parse(String query) {
+		this.query = query;
+		this.tokens = tokenize(query);
+		this.position = 0;
+		QueryCondition condition = parseOr();
+		if (peek().type != Type.END) {
+			throw error("Unexpected " + peek());
+		}
+		return condition;
+	}
+
+	private ArrayList<Token> tokenize(String query) {
+		ArrayList<Token> tokens = new ArrayList<Token>();
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			int start = i;
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '(') {
+				tokens.add(new Token(Type.OPEN, "(", start, ++i));
+			} else if (c == ')') {
+				tokens.add(new Token(Type.CLOSE, ")", start, ++i));
+			} else if (c == ',') {
+				tokens.add(new Token(Type.COMMA, ",", start, ++i));
+			} else if (c == '\'' || c == '"') {
+				int end = query.indexOf(c, i + 1);
+				if (end < 0) {
+					throw new RuntimeException("Unterminated quote at position " + start + " in query: " + query);
+				}
+				tokens.add(new Token(Type.QUOTED, query.substring(i + 1, end), start, end + 1));
+				i = end + 1;
+			} else if (OPERATOR_CHARS.indexOf(c) >= 0) {
+				while (i < query.length() && OPERATOR_CHARS.indexOf(query.charAt(i)) >= 0) {
+					i++;
+				}
+				tokens.add(new Token(Type.OPERATOR, query.substring(start, i), start, i));
+			} else {
+				while (i < query.length() && !Character.isWhitespace(query.charAt(i)) && SPECIAL_CHARS.indexOf(query.charAt(i)) < 0) {
+					i++;
+				}
+				tokens.add(new Token(Type.WORD, query.substring(start, i), start, i));
+			}
+		}
+		tokens.add(new Token(Type.END, "", query.length(), query.length()));
+		return tokens;
+	}
+
+	private Token peek() {
+		return tokens.get(position);
+	}
+
+	private Token next() {
+		Token token = tokens.get(position);
+		if (token.type != Type.END) {
+			position++;
+		}
+		return token;
+	}
+
+	private Token expect(Type type, String description) {
+		Token token = next();
+		if (token.type != type) {
+			throw error("Expected " + description + " but found " + token);
+		}
+		return token;
+	}
+
+	private RuntimeException error(String message) {
+		return new RuntimeException(message + " at position " + peek().start + " in query: " + query);
+	}
+
+	private QueryCondition parseOr() {
+		ArrayList<QueryCondition> conditions = new ArrayList<QueryCondition>();
+		conditions.add(parseAnd());
+		while (peek().isKeyword("OR")) {
+			next();
+			conditions.add(parseAnd());
+		}
+		return conditions.size() == 1 ? conditions.get(0) : new OrCondition(conditions);
+	}
+
+	private QueryCondition parseAnd() {
+		ArrayList<QueryCondition> conditions = new ArrayList<QueryCondition>();
+		conditions.add(parseNot());
+		while (peek().isKeyword("AND")) {
+			next();
+			conditions.add(parseNot());
+		}
+		return conditions.size() == 1 ? conditions.get(0) : new AndCondition(conditions);
+	}
+
+	private QueryCondition parseNot() {
+		if (peek().isKeyword("NOT")) {
+			next();
+			return new NotCondition(parseNot());
+		} else if (peek().type == Type.OPEN) {
+			next();
+			QueryCondition condition = parseOr();
+			expect(Type.CLOSE, "')'");
+			return condition;
+		} else {
+			return parseComparison();
+		}
+	}
+
+	private QueryCondition parseComparison() {
+		// The property name is all words up to the operator, which allows names
+		// with spaces
+		Token first = expect(Type.WORD, "property name");
+		Token last = first;
+		while (peek().type == Type.WORD && !peek().isKeyword()) {
+			last = next();
+		}
+		String property = query.substring(first.start, last.end);
+		PropertyConfig<?> propertyConfig = config.getProperty(property);
+		if (propertyConfig == null) {
+			throw error("Unknown property '" + property + "'");
+		}
+		boolean negate = false;
+		if (peek().isKeyword("NOT")) {
+			next();
+			negate = true;
+			if (!peek().isKeyword("IN") && !peek().isKeyword("BETWEEN")) {
+				throw error("Expected IN or BETWEEN after NOT but found " + peek());
+			}
+		}
+		QueryCondition condition;
+		if (peek().isKeyword("IN")) {
+			next();
+			expect(Type.OPEN, "'('");
+			ArrayList<QueryCondition> conditions = new ArrayList<QueryCondition>();
+			conditions.add(new EqualsCondition(property, parseValue(propertyConfig), propertyConfig));
+			while (peek().type == Type.COMMA) {
+				next();
+				conditions.add(new EqualsCondition(property, parseValue(propertyConfig), propertyConfig));
+			}
+			expect(Type.CLOSE, "')'");
+			condition = conditions.size() == 1 ? conditions.get(0) : new OrCondition(conditions);
+		} else if (peek().isKeyword("BETWEEN")) {
+			next();
+			ArrayList<QueryCondition> conditions = new ArrayList<QueryCondition>();
+			conditions.add(new GreaterThanOrEqualsCondition(property, parseValue(propertyConfig), propertyConfig));
+			if (!next().isKeyword("AND")) {
+				throw error("Expected AND in BETWEEN");
+			}
+			conditions.add(new LessThanOrEqualsCondition(property, parseValue(propertyConfig), propertyConfig));
+			condition = new AndCondition(conditions);
+		} else {
+			String op = expect(Type.OPERATOR, "comparison operator").text;
+			Object value = parseValue(propertyConfig);
+			if (op.equals("==") || op.equals("=")) {
+				condition = new EqualsCondition(property, value, propertyConfig);
+			} else if (op.equals("!=") || op.equals("<>")) {
+				condition = new NotCondition(new EqualsCondition(property, value, propertyConfig));
+			} else if (op.equals("<=")) {
+				condition = new LessThanOrEqualsCondition(property, value, propertyConfig);
+			} else if (op.equals(">=")) {
+				condition = new GreaterThanOrEqualsCondition(property, value, propertyConfig);
+			} else if (op.equals("<")) {
+				condition = new LessThanCondition(property, value, propertyConfig);
+			} else if (op.equals(">")) {
+				condition = new GreaterThanCondition(property, value, propertyConfig);
+			} else {
+				throw new RuntimeException("Unimplemented operation[" + op + "] in query: " + query);
+			}
+		}
+		return negate ? new NotCondition(condition) : condition;
+	}
+
+	private Object parseValue(PropertyConfig<?> propertyConfig) {
+		Token token = next();
+		if (token.type != Type.WORD && token.type != Type.QUOTED) {
+			throw error("Expected value for '" + propertyConfig.getName() + "' but found " + token);
+		}
+		try {
+			return propertyConfig.getMapper().parse(token.text);
+		} catch (NumberFormatException e) {
+			throw error("Invalid value '" + token.text + "' for '" + propertyConfig.getName() + "'");
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package org.amanzi.index.aggregators;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class collects the count, sum, min and max of the values of one
+ * property over a set of data nodes. Aggregates of separate sets can be merged,
+ * so that the aggregate of an index subtree can be built from the statistics
+ * of the index nodes below it and the data nodes at the edges of the query
+ * ranges. The min and max are held as doubles, like the sum.
+ */
+public class Aggregate {
+	private int count = 0;
+	private double sum = 0;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+
+	/** The aggregation functions that can be calculated from an Aggregate */
+	public static enum Function {
+		COUNT, SUM, MIN, MAX, AVG;
+	}
+
+	/** Add a single value to the aggregate */
+	public void add(Number number) {
+		double value = number.doubleValue();
+		if (count == 0) {
+			min = value;
+			max = value;
+		} else {
+			min = Math.min(value, min);
+			max = Math.max(value, max);
+		}
+		sum += value;
+		count++;
+	}
+
+	/** Add the values of another aggregate to this one */
+	public void add(Aggregate other) {
+		if (other.count > 0) {
+			if (count == 0) {
+				min = other.min;
+				max = other.max;
+			} else {
+				min = Math.min(other.min, min);
+				max = Math.max(other.max, max);
+			}
+			sum += other.sum;
+			count += other.count;
+		}
+	}
+
+	/**
+	 * Add the statistics of an index node for the specified property to this
+	 * aggregate.
+	 */
+	public void add(Node indexNode, String property) {
+		int otherCount = IndexStatistics.getCount(indexNode, property);
+		if (otherCount > 0) {
+			double otherMin = IndexStatistics.getMin(indexNode, property).doubleValue();
+			double otherMax = IndexStatistics.getMax(indexNode, property).doubleValue();
+			if (count == 0) {
+				min = otherMin;
+				max = otherMax;
+			} else {
+				min = Math.min(otherMin, min);
+				max = Math.max(otherMax, max);
+			}
+			sum += IndexStatistics.getSum(indexNode, property);
+			count += otherCount;
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	/** @return the minimum value, or NaN if there are no values */
+	public double getMin() {
+		return min;
+	}
+
+	/** @return the maximum value, or NaN if there are no values */
+	public double getMax() {
+		return max;
+	}
+
+	/** @return the average value, or NaN if there are no values */
+	public double getAverage() {
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	/**
+	 * @return the result of the aggregation function, which is NaN for MIN,
+	 *         MAX and AVG if there are no values
+	 */
+	public double get(Function function) {
+		switch (function) {
+		case COUNT:
+			return count;
+		case SUM:
+			return sum;
+		case MIN:
+			return min;
+		case MAX:
+			return max;
+		case AVG:
+			return getAverage();
+		default:
+			throw new IllegalArgumentException("Unknown aggregation function: " + function);
+		}
+	}
+
+	public String toString() {
+		return "Aggregate[count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max + "]";
+	}
+}
@@ -12,6 +12,8 @@ package org.amanzi.index.aggregators;
  * @author craig
  */
 public interface Aggregator<T> {
+	/** Convert a numerical property value to the type of this aggregator */
+	public T valueOf(Number value);
 	public T max(T value, T max);
 	public T min(T value, T min);
 	public T total(T value, T total);
@@ -2,6 +2,10 @@ package org.amanzi.index.aggregators;
 
 public class FloatAggregator implements Aggregator<Float> {
 
+	public Float valueOf(Number value) {
+		return value.floatValue();
+	}
+
 	public Float max(Float value, Float max) {
 		return value > max ? value : max;
 	}
@@ -0,0 +1,242 @@
+package org.amanzi.index.aggregators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.amanzi.index.AmanziIndexRelationshipTypes;
+import org.amanzi.index.config.IndexConfig;
+import org.amanzi.index.config.PropertyConfig;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * This class maintains aggregation statistics on the index nodes for the
+ * numerical properties of the index. Every index node holds the count, min, max
+ * and sum of each numerical property over all data nodes indexed below it, in
+ * the properties 'count:name', 'min:name', 'max:name' and 'sum:name'. The count
+ * is kept per property, since not all data nodes have all properties, and the
+ * sum is kept as a double, so that sums over large subtrees do not overflow.
+ * Averages are calculated on demand from the sum and the count. Data nodes
+ * marked 'disabled' are not included, since searches do not find them. Other
+ * properties of the data nodes have no statistics, even if they are numbers.
+ * <p>
+ * Since the statistics of a subtree are simply combined into the statistics of
+ * its parent, statistical queries can be answered from the index nodes without
+ * visiting the data nodes.
+ * </p>
+ * <p>
+ * When a data node is removed, the count and sum are simply reduced, but the
+ * min and max cannot be, so if the removed value was the min or max of an index
+ * node, they are recalculated from the children of that index node. Since the
+ * index nodes are updated from the bottom up, the children are already correct.
+ * </p>
+ */
+public class IndexStatistics {
+	public static final String COUNT = "count:";
+	public static final String MIN = "min:";
+	public static final String MAX = "max:";
+	public static final String SUM = "sum:";
+	private final ArrayList<String> names = new ArrayList<String>();
+	private final ArrayList<Aggregator<?>> aggregators = new ArrayList<Aggregator<?>>();
+
+	/**
+	 * Create statistics for all numerical properties of the index configuration
+	 */
+	public IndexStatistics(IndexConfig config) {
+		for (PropertyConfig<?> property : config.getProperties()) {
+			Aggregator<?> aggregator = aggregatorFor(property.getTypeName());
+			if (aggregator != null) {
+				names.add(property.getName());
+				aggregators.add(aggregator);
+			}
+		}
+	}
+
+	/**
+	 * @return the aggregator for the specified property type, or null if the
+	 *         type is not numerical
+	 */
+	public static Aggregator<?> aggregatorFor(String typeName) {
+		if ("integer".equalsIgnoreCase(typeName)) {
+			return new IntegerAggregator();
+		} else if ("long".equalsIgnoreCase(typeName)) {
+			return new LongAggregator();
+		} else if ("float".equalsIgnoreCase(typeName)) {
+			return new FloatAggregator();
+		} else {
+			return null;
+		}
+	}
+
+	/** @return the names of the properties with statistics */
+	public Collection<String> getPropertyNames() {
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * Add the properties of a newly indexed data node to the statistics of an
+	 * index node above it. Values that are not numbers are ignored.
+	 */
+	public void add(Node indexNode, Node data) {
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			Object value = data.getProperty(name, null);
+			if (value instanceof Number) {
+				update(indexNode, name, aggregators.get(i), (Number) value);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> void update(Node indexNode, String name, Aggregator<T> aggregator, Number number) {
+		T value = aggregator.valueOf(number);
+		T min = (T) indexNode.getProperty(MIN + name, null);
+		T max = (T) indexNode.getProperty(MAX + name, null);
+		indexNode.setProperty(MIN + name, min == null ? value : aggregator.min(value, min));
+		indexNode.setProperty(MAX + name, max == null ? value : aggregator.max(value, max));
+		indexNode.setProperty(SUM + name, getSum(indexNode, name) + number.doubleValue());
+		indexNode.setProperty(COUNT + name, getCount(indexNode, name) + 1);
+	}
+
+	/**
+	 * Remove the properties of a data node from the statistics of an index node
+	 * above it. This must be called after the data node has been unlinked from
+	 * the index, and after the index nodes below this one have been updated,
+	 * since the min and max might be recalculated from them.
+	 */
+	public void remove(Node indexNode, Node data) {
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			Object value = data.getProperty(name, null);
+			if (value instanceof Number && hasStatistics(indexNode, name)) {
+				remove(indexNode, name, aggregators.get(i), (Number) value);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> void remove(Node indexNode, String name, Aggregator<T> aggregator, Number number) {
+		int count = getCount(indexNode, name) - 1;
+		if (count <= 0) {
+			clear(indexNode, name);
+		} else {
+			T value = aggregator.valueOf(number);
+			indexNode.setProperty(SUM + name, getSum(indexNode, name) - number.doubleValue());
+			indexNode.setProperty(COUNT + name, count);
+			if (value.equals(indexNode.getProperty(MIN + name, null)) || value.equals(indexNode.getProperty(MAX + name, null))) {
+				recalculate(indexNode, name, aggregator);
+			}
+		}
+	}
+
+	/**
+	 * Recalculate all statistics of an index node from its child index nodes,
+	 * or from its data nodes if it has no children. Data nodes marked
+	 * 'disabled' are not included. This is used to repair the statistics when
+	 * the index is compacted.
+	 */
+	public void recalculate(Node indexNode) {
+		for (int i = 0; i < names.size(); i++) {
+			recalculate(indexNode, names.get(i), aggregators.get(i));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> void recalculate(Node indexNode, String name, Aggregator<T> aggregator) {
+		T min = null;
+		T max = null;
+		double sum = 0;
+		int count = 0;
+		for (Relationship rel : indexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+			Node child = rel.getEndNode();
+			if (hasStatistics(child, name)) {
+				T childMin = (T) child.getProperty(MIN + name);
+				T childMax = (T) child.getProperty(MAX + name);
+				min = min == null ? childMin : aggregator.min(childMin, min);
+				max = max == null ? childMax : aggregator.max(childMax, max);
+				sum += getSum(child, name);
+				count += getCount(child, name);
+			}
+		}
+		for (Relationship rel : indexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+			Node data = rel.getEndNode();
+			Object number = data.getProperty(name, null);
+			if (number instanceof Number && !"disabled".equals(data.getProperty("state", null))) {
+				T value = aggregator.valueOf((Number) number);
+				min = min == null ? value : aggregator.min(value, min);
+				max = max == null ? value : aggregator.max(value, max);
+				sum += ((Number) number).doubleValue();
+				count++;
+			}
+		}
+		if (count > 0) {
+			indexNode.setProperty(MIN + name, min);
+			indexNode.setProperty(MAX + name, max);
+			indexNode.setProperty(SUM + name, sum);
+			indexNode.setProperty(COUNT + name, count);
+		} else {
+			clear(indexNode, name);
+		}
+	}
+
+	private static void clear(Node indexNode, String name) {
+		indexNode.removeProperty(COUNT + name);
+		indexNode.removeProperty(MIN + name);
+		indexNode.removeProperty(MAX + name);
+		indexNode.removeProperty(SUM + name);
+	}
+
+	/**
+	 * Copy the statistics of one index node to another. This is used when a new
+	 * parent index node is created above an existing index node, and so covers
+	 * exactly the same data.
+	 */
+	public static void copy(Node from, Node to) {
+		for (String key : from.getPropertyKeys()) {
+			if (isStatistic(key)) {
+				to.setProperty(key, from.getProperty(key));
+			}
+		}
+	}
+
+	private static boolean isStatistic(String key) {
+		return key.startsWith(COUNT) || key.startsWith(MIN) || key.startsWith(MAX) || key.startsWith(SUM);
+	}
+
+	/** @return true if the index node has statistics for the property */
+	public static boolean hasStatistics(Node indexNode, String name) {
+		return indexNode.hasProperty(COUNT + name);
+	}
+
+	/**
+	 * @return the number of data nodes below the index node with a numerical
+	 *         value for the property
+	 */
+	public static int getCount(Node indexNode, String name) {
+		return (Integer) indexNode.getProperty(COUNT + name, 0);
+	}
+
+	/** @return the sum of the property values below the index node */
+	public static double getSum(Node indexNode, String name) {
+		return (Double) indexNode.getProperty(SUM + name, 0.0);
+	}
+
+	/**
+	 * @return the minimum of the property values below the index node, or null
+	 *         if there are none
+	 */
+	public static Number getMin(Node indexNode, String name) {
+		return (Number) indexNode.getProperty(MIN + name, null);
+	}
+
+	/**
+	 * @return the maximum of the property values below the index node, or null
+	 *         if there are none
+	 */
+	public static Number getMax(Node indexNode, String name) {
+		return (Number) indexNode.getProperty(MAX + name, null);
+	}
+
+}
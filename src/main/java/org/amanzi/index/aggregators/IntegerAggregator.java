@@ -2,6 +2,10 @@ package org.amanzi.index.aggregators;
 
 public class IntegerAggregator implements Aggregator<Integer> {
 
+	public Integer valueOf(Number value) {
+		return value.intValue();
+	}
+
 	public Integer max(Integer value, Integer max) {
 		return value > max ? value : max;
 	}
@@ -0,0 +1,25 @@
+package org.amanzi.index.aggregators;
+
+public class LongAggregator implements Aggregator<Long> {
+
+	public Long valueOf(Number value) {
+		return value.longValue();
+	}
+
+	public Long max(Long value, Long max) {
+		return value > max ? value : max;
+	}
+
+	public Long min(Long value, Long min) {
+		return value < min ? value : min;
+	}
+
+	public Long total(Long value, Long total) {
+		return value + total;
+	}
+
+	public Long average(Long total, int count) {
+		return total / count;
+	}
+
+}
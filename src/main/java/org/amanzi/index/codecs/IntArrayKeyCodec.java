@@ -0,0 +1,35 @@
+package org.amanzi.index.codecs;
+
+import java.util.Arrays;
+
+/**
+ * The default codec, which stores the index keys as an int[] property.
+ */
+public class IntArrayKeyCodec implements KeyCodec {
+	public static final String NAME = "intArray";
+
+	public String getName() {
+		return NAME;
+	}
+
+	public Object encode(int[] keys) {
+		return keys;
+	}
+
+	public int[] decode(Object stored) {
+		return (int[]) stored;
+	}
+
+	public int keyAt(Object stored, int position) {
+		return ((int[]) stored)[position];
+	}
+
+	public boolean matches(Object stored, int[] keys) {
+		return Arrays.equals((int[]) stored, keys);
+	}
+
+	public String toString() {
+		return "IntArrayKeyCodec";
+	}
+
+}
@@ -0,0 +1,28 @@
+package org.amanzi.index.codecs;
+
+/**
+ * A KeyCodec defines how the int[] index key of an index node is stored in the
+ * 'index' property of that node. The default is to store the int[] directly,
+ * but for indexes with few properties the keys can be packed into a more
+ * compact representation. Since the index keys are read for every index node
+ * tested during both indexing and searching, the codec also supports reading
+ * and comparing the stored keys without decoding them into a new int[].
+ */
+public interface KeyCodec {
+
+	/** The name of this codec, as saved in the index configuration */
+	public String getName();
+
+	/** Convert the index keys into the value to store in the 'index' property */
+	public Object encode(int[] keys);
+
+	/** Convert the stored 'index' property value back into the index keys */
+	public int[] decode(Object stored);
+
+	/** Read the index key of the property at the specified position */
+	public int keyAt(Object stored, int position);
+
+	/** Test if the stored 'index' property value represents the index keys */
+	public boolean matches(Object stored, int[] keys);
+
+}
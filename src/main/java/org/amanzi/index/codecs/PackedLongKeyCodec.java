@@ -0,0 +1,107 @@
+package org.amanzi.index.codecs;
+
+import java.util.Arrays;
+
+/**
+ * This codec packs all index keys of a node into a single long property. The
+ * 64 bits are divided equally between the properties of the index, and each
+ * key is stored with a bias so that negative keys can be represented. For
+ * indexes with one or two properties every possible key fits, but with more
+ * properties the range of keys that can be packed gets smaller. Keys that do
+ * not fit are stored as a plain int[] instead, so the codec can be used
+ * safely for any index, and the keys of the higher levels of the tree, which
+ * are small, will always be packed.
+ * <p>
+ * A packed value of zero is reserved for the special NO_PROPERTY key, since
+ * this key is far outside the range of keys that can be packed when less than
+ * 32 bits are available per key.
+ * </p>
+ */
+public class PackedLongKeyCodec implements KeyCodec {
+	public static final String NAME = "packedLong";
+	private static final int NO_PROPERTY = Integer.MIN_VALUE + 1;
+	private final int size;
+	private final int bits;
+	private final long mask;
+	private final long bias;
+
+	/**
+	 * Create a codec for an index with the specified number of properties.
+	 */
+	public PackedLongKeyCodec(int size) {
+		this.size = Math.max(size, 1);
+		this.bits = Math.min(64 / this.size, 32);
+		this.mask = bits == 64 ? -1L : (1L << bits) - 1;
+		this.bias = bits >= 32 ? -(long) Integer.MIN_VALUE : 1L << (bits - 1);
+	}
+
+	public String getName() {
+		return NAME;
+	}
+
+	/** @return true if the key can be represented within the bits available */
+	private boolean fits(int key) {
+		if (bits >= 32 || key == NO_PROPERTY) {
+			return true;
+		}
+		long code = key + bias;
+		return code > 0 && code <= mask;
+	}
+
+	public Object encode(int[] keys) {
+		if (keys.length != size || bits == 0) {
+			return keys;
+		}
+		long packed = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (!fits(keys[i])) {
+				return keys;
+			}
+			long code = (bits < 32 && keys[i] == NO_PROPERTY) ? 0 : keys[i] + bias;
+			packed |= (code & mask) << (i * bits);
+		}
+		return packed;
+	}
+
+	public int[] decode(Object stored) {
+		if (stored instanceof int[]) {
+			return (int[]) stored;
+		}
+		int[] keys = new int[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = keyAt(stored, i);
+		}
+		return keys;
+	}
+
+	public int keyAt(Object stored, int position) {
+		if (stored instanceof int[]) {
+			return ((int[]) stored)[position];
+		}
+		long code = ((Long) stored >>> (position * bits)) & mask;
+		if (bits < 32 && code == 0) {
+			return NO_PROPERTY;
+		}
+		return (int) (code - bias);
+	}
+
+	public boolean matches(Object stored, int[] keys) {
+		if (stored instanceof int[]) {
+			return Arrays.equals((int[]) stored, keys);
+		}
+		if (keys.length != size) {
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			if (keyAt(stored, i) != keys[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String toString() {
+		return "PackedLongKeyCodec[" + size + " x " + bits + " bits]";
+	}
+
+}
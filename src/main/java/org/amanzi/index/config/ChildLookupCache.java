@@ -0,0 +1,202 @@
+package org.amanzi.index.config;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.amanzi.index.AmanziIndexRelationshipTypes;
+import org.amanzi.index.codecs.KeyCodec;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * This cache maps index nodes and child index keys directly to the node ids of
+ * the matching child index nodes. Without it, finding a child index node
+ * requires iterating over all INDEX_CHILD relationships of the parent and
+ * reading the 'index' property of each child, which is expensive for parents
+ * with many children. The first lookup on a parent loads all its children, and
+ * the parent is then marked complete, so that later lookups, including lookups
+ * for children that do not exist yet, are simple hash lookups. Newly created
+ * children are added with addChild(Node, Node, int[]). The child keys are held
+ * in the packed form produced by the KeyCodec of the index, where possible.
+ * <p>
+ * The cache is bounded by the number of entries it holds, each entry being a
+ * parent node id and child key, so a few parents with very many children
+ * cannot use more memory than many parents with few children. When the limit
+ * is reached, the least recently used entry is dropped, and its parent is no
+ * longer complete, so will be reloaded from the graph if a lookup misses.
+ * </p>
+ * <p>
+ * Node ids are reused by Neo4j, so a cached id might refer to a node that was
+ * deleted, or created in a transaction that was rolled back, and the id since
+ * given to another node. Before returning a cached node we therefore check
+ * that it is still linked from the parent by an INDEX_CHILD relationship and
+ * still has the expected keys, and reload the parent if not.
+ * </p>
+ */
+public class ChildLookupCache {
+	public static final int DEFAULT_SIZE = 100000;
+	private final LinkedHashMap<ChildKey, Long> children;
+	private final LinkedHashMap<Long, Boolean> complete;
+	private final KeyCodec codec;
+	private final int maxEntries;
+
+	/**
+	 * The key of one cache entry, combining the parent node id with the index
+	 * key of the child. The child key is the packed value produced by the
+	 * KeyCodec, or the int[] itself if the KeyCodec does not pack it into a
+	 * value with its own equals and hashCode.
+	 */
+	private static final class ChildKey {
+		private final long parent;
+		private final Object key;
+		private final int hash;
+
+		private ChildKey(long parent, Object key) {
+			this.parent = parent;
+			this.key = key;
+			this.hash = 31 * (int) (parent ^ (parent >>> 32)) + (key instanceof int[] ? Arrays.hashCode((int[]) key) : key.hashCode());
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ChildKey)) {
+				return false;
+			}
+			ChildKey other = (ChildKey) obj;
+			if (parent != other.parent) {
+				return false;
+			}
+			if (key instanceof int[]) {
+				return other.key instanceof int[] && Arrays.equals((int[]) key, (int[]) other.key);
+			}
+			return key.equals(other.key);
+		}
+	}
+
+	public ChildLookupCache(KeyCodec codec) {
+		this(codec, DEFAULT_SIZE);
+	}
+
+	/**
+	 * Create a cache holding at most maxEntries children, over all parents.
+	 */
+	public ChildLookupCache(KeyCodec codec, final int maxEntries) {
+		this.codec = codec;
+		this.maxEntries = maxEntries;
+		this.complete = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		this.children = new LinkedHashMap<ChildKey, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<ChildKey, Long> eldest) {
+				if (size() > maxEntries) {
+					complete.remove(eldest.getKey().parent);
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Find the child of the parent index node with the specified index keys,
+	 * loading all children of the parent into the cache if the parent is not
+	 * already complete.
+	 *
+	 * @return the child index node, or null if there is no such child
+	 */
+	public Node getChild(Node parent, int[] keys) {
+		ChildKey key = new ChildKey(parent.getId(), codec.encode(keys));
+		Long childId = children.get(key);
+		if (childId == null && !complete.containsKey(parent.getId())) {
+			load(parent);
+			childId = children.get(key);
+		}
+		if (childId != null) {
+			Node child = verify(parent, childId, keys);
+			if (child == null) {
+				// The cached id no longer refers to this child, so reload the
+				// parent from the graph
+				children.remove(key);
+				load(parent);
+				childId = children.get(key);
+				child = childId == null ? null : verify(parent, childId, keys);
+			}
+			return child;
+		}
+		return null;
+	}
+
+	/**
+	 * Add a newly created child index node to the cache. If the parent is not
+	 * complete, the child would also be found when the parent is loaded, but
+	 * adding it saves the load for a lookup of this child.
+	 */
+	public void addChild(Node parent, Node child, int[] keys) {
+		children.put(new ChildKey(parent.getId(), codec.encode(Arrays.copyOf(keys, keys.length))), child.getId());
+	}
+
+	/**
+	 * Load all children of the specified index node into the cache, and mark
+	 * the parent complete.
+	 */
+	public void load(Node parent) {
+		long parentId = parent.getId();
+		int count = 0;
+		complete.remove(parentId);
+		for (Relationship rel : parent.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+			Node child = rel.getEndNode();
+			children.put(new ChildKey(parentId, child.getProperty("index")), child.getId());
+			count++;
+		}
+		// A parent with more children than the cache can hold cannot be
+		// complete, since some of its own entries were evicted while loading
+		if (count <= maxEntries) {
+			complete.put(parentId, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Forget that the children of the specified index node are complete. Any
+	 * remaining cached entries of the parent are checked against the graph
+	 * before use, so do not need to be found and removed.
+	 */
+	public void remove(Node parent) {
+		complete.remove(parent.getId());
+	}
+
+	public void clear() {
+		children.clear();
+		complete.clear();
+	}
+
+	/**
+	 * Return the node with the cached id, if it exists, is still a child of the
+	 * parent, and still has the specified keys, otherwise return null.
+	 */
+	private Node verify(Node parent, long childId, int[] keys) {
+		Node child;
+		try {
+			child = parent.getGraphDatabase().getNodeById(childId);
+		} catch (NotFoundException e) {
+			return null;
+		}
+		Relationship rel = child.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING);
+		if (rel == null || rel.getStartNode().getId() != parent.getId()) {
+			return null;
+		}
+		Object stored = child.getProperty("index", null);
+		return stored != null && codec.matches(stored, keys) ? child : null;
+	}
+}
@@ -8,6 +8,9 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.amanzi.index.AmanziIndexRelationshipTypes;
+import org.amanzi.index.codecs.IntArrayKeyCodec;
+import org.amanzi.index.codecs.KeyCodec;
+import org.amanzi.index.codecs.PackedLongKeyCodec;
 import org.amanzi.index.mappers.ListStringMapper;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
@@ -16,9 +19,13 @@ import org.neo4j.graphdb.Transaction;
 
 public class DefaultIndexConfig implements IndexConfig {
 	private IntegerStepper stepper;
+	private volatile int[] stepSizes = new int[0];
 	private HashMap<String, PropertyConfig<?>> properties;
 	private HashMap<String, Integer> propertyPositions;
 	private Node configNode;
+	private String keyCodecName;
+	private KeyCodec keyCodec;
+	private boolean statistics;
 
 	/**
 	 * This stepper converts low level index keys to higher level keys and back.
@@ -40,6 +47,22 @@ public class DefaultIndexConfig implements IndexConfig {
 			return (origin - stepSize / 2) + index * stepSize;
 		}
 
+		/**
+		 * The lowest value with this index, which unlike valueOf takes into
+		 * account that indexOf rounds towards zero, so index 0 and the negative
+		 * indices cover more values.
+		 */
+		public int lowestValueOf(int index, int origin, int stepSize) {
+			long value;
+			if (index > 0) {
+				value = (long) index * stepSize;
+			} else {
+				value = (long) (index - 1) * stepSize + 1;
+			}
+			value += origin - stepSize / 2;
+			return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+		}
+
 		public int stepSize(int level) {
 			return (int) (Math.pow(step, level));
 		}
@@ -50,8 +73,19 @@ public class DefaultIndexConfig implements IndexConfig {
 	}
 
 	public DefaultIndexConfig(int step, Collection<PropertyConfig<?>> properties) {
+		this(step, properties, IntArrayKeyCodec.NAME);
+	}
+
+	/**
+	 * Create a configuration using the named KeyCodec for storing the index
+	 * keys of the index nodes. Supported codecs are IntArrayKeyCodec.NAME (the
+	 * default) and PackedLongKeyCodec.NAME.
+	 */
+	public DefaultIndexConfig(int step, Collection<PropertyConfig<?>> properties, String keyCodec) {
 		// step = step%2==1?step:step+1;
 		this.stepper = new IntegerStepper(step);
+		this.keyCodecName = keyCodec;
+		this.statistics = true;
 		this.properties = new LinkedHashMap<String, PropertyConfig<?>>();
 		for (PropertyConfig<?> property : properties) {
 			this.properties.put(property.getName(), property);
@@ -68,6 +102,9 @@ public class DefaultIndexConfig implements IndexConfig {
 	public DefaultIndexConfig(Node node) {
 		this.configNode = node;
 		this.stepper = new IntegerStepper((Integer) configNode.getProperty("step"));
+		this.keyCodecName = (String) configNode.getProperty("key_codec", IntArrayKeyCodec.NAME);
+		// Indexes saved without the flag were built without statistics
+		this.statistics = (Boolean) configNode.getProperty("statistics", false);
 		HashMap<Integer, PropertyConfig<?>> propMap = new HashMap<Integer, PropertyConfig<?>>();
 		for (Relationship rel : configNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_CONFIG, Direction.OUTGOING)) {
 			int order = (Integer) rel.getProperty("order");
@@ -89,6 +126,8 @@ public class DefaultIndexConfig implements IndexConfig {
 		try {
 			configNode = indexNode.getGraphDatabase().createNode();
 			configNode.setProperty("step", this.stepper.step);
+			configNode.setProperty("key_codec", this.keyCodecName);
+			configNode.setProperty("statistics", this.statistics);
 			indexNode.createRelationshipTo(configNode, AmanziIndexRelationshipTypes.INDEX_CONFIG);
 			int order = 0;
 			for (PropertyConfig<?> property : getProperties()) {
@@ -157,9 +196,51 @@ public class DefaultIndexConfig implements IndexConfig {
 		return properties.size();
 	}
 
+	@Override
+	public KeyCodec getKeyCodec() {
+		if (keyCodec == null) {
+			if (PackedLongKeyCodec.NAME.equals(keyCodecName)) {
+				keyCodec = new PackedLongKeyCodec(size());
+			} else if (IntArrayKeyCodec.NAME.equals(keyCodecName)) {
+				keyCodec = new IntArrayKeyCodec();
+			} else {
+				throw new IllegalArgumentException("Unknown key codec '" + keyCodecName + "'");
+			}
+		}
+		return keyCodec;
+	}
+
+	@Override
+	public boolean hasStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Enable or disable the statistics of numerical properties on the index
+	 * nodes, which are enabled by default. This must be set before the index is
+	 * created, since statistics can only be used if they were maintained for
+	 * all data in the index.
+	 */
+	public void setStatistics(boolean statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * The step size of each level is cached, since it is needed for every key
+	 * conversion, and calculating it involves Math.pow. The cache is shared by
+	 * the query and writer threads, so a larger array is filled before it is
+	 * published through the volatile field, and is never changed after.
+	 */
 	private int stepSize(int level) {
-		// TODO: Optimize with cache
-		return stepper.stepSize(level);
+		int[] sizes = stepSizes;
+		if (level >= sizes.length) {
+			sizes = new int[level + 1];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = stepper.stepSize(i);
+			}
+			stepSizes = sizes;
+		}
+		return sizes[level];
 	}
 
 	@Override
@@ -175,16 +256,21 @@ public class DefaultIndexConfig implements IndexConfig {
 	@Override
 	public int[] keysFor(int[] keys, int level) {
 		int[] newKeys = new int[keys.length];
+		int stepSize = stepSize(level);
 		for (int i = 0; i < keys.length; i++) {
-			newKeys[i] = stepper.indexOf(keys[i], 0, stepSize(level));
+			newKeys[i] = stepper.indexOf(keys[i], 0, stepSize);
 		}
 		return newKeys;
 	}
 
 	@Override
 	public int[] valuesFor(int[] keys, int level) {
-		// TODO Auto-generated method stub
-		return null;
+		int[] values = new int[keys.length];
+		int stepSize = stepSize(level);
+		for (int i = 0; i < keys.length; i++) {
+			values[i] = stepper.lowestValueOf(keys[i], 0, stepSize);
+		}
+		return values;
 	}
 
 }
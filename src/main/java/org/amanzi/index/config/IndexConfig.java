@@ -2,6 +2,7 @@ package org.amanzi.index.config;
 
 import java.util.Collection;
 
+import org.amanzi.index.codecs.KeyCodec;
 import org.neo4j.graphdb.Node;
 
 /**
@@ -33,7 +34,13 @@ public interface IndexConfig {
 	/** Convert level 0 keys to keys at any other level */
 	public int[] keysFor(int[] keys, int level);
 	
-	/** Convert keys at some level to level 0 keys */
+	/** The codec used to store index keys in the 'index' property of index nodes */
+	public KeyCodec getKeyCodec();
+
+	/** True if the index nodes hold statistics of the numerical properties */
+	public boolean hasStatistics();
+
+	/** Convert keys at some level to the lowest level 0 keys they include */
 	public int[] valuesFor(int[] keys, int level);
 	
 	public void save(Node indexNode);
@@ -0,0 +1,212 @@
+package org.amanzi.index.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The index filter describes the index keys of one level of the index that can
+ * contain data matching a query, as a union of boxes (hyper-rectangles) in the
+ * key space. Each box has an inclusive min and max key for each property, with
+ * Integer.MIN_VALUE and Integer.MAX_VALUE meaning the property is not limited
+ * on that side. Comparisons create a single box, 'and' conditions intersect the
+ * boxes of their conditions and 'or' conditions unite them, so disjunctive
+ * queries are filtered as tightly as conjunctive ones, instead of by one
+ * bounding box around all their ranges.
+ * <p>
+ * Boxes contained in other boxes are dropped. Overlapping or adjacent boxes are
+ * not merged, since the limits of each box are the keys of index nodes that can
+ * hold data on both sides of the limit, and would look like keys inside the
+ * merged box. If the number of boxes grows beyond MAX_BOXES, they are replaced
+ * by their bounding box.
+ * </p>
+ * <p>
+ * A filter is exact if the data matching the query is exactly the data with
+ * keys inside the boxes, and not just some of it. Only then can index nodes
+ * lying strictly inside a box be accepted without testing the data below them.
+ * </p>
+ */
+public class IndexFilter {
+	public static final int MAX_BOXES = 64;
+	public static final int UNLIMITED_MIN = Integer.MIN_VALUE;
+	public static final int UNLIMITED_MAX = Integer.MAX_VALUE;
+	private final int size;
+	private final ArrayList<int[]> mins = new ArrayList<int[]>();
+	private final ArrayList<int[]> maxs = new ArrayList<int[]>();
+	private boolean exact;
+
+	private IndexFilter(int size, boolean exact) {
+		this.size = size;
+		this.exact = exact;
+	}
+
+	/**
+	 * Create a filter that includes all index keys. This is exact only if all
+	 * data matches the query.
+	 */
+	public static IndexFilter all(int size, boolean exact) {
+		IndexFilter filter = new IndexFilter(size, exact);
+		int[] min = new int[size];
+		int[] max = new int[size];
+		Arrays.fill(min, UNLIMITED_MIN);
+		Arrays.fill(max, UNLIMITED_MAX);
+		filter.addBox(min, max);
+		return filter;
+	}
+
+	/** Create an exact filter that includes no index keys */
+	public static IndexFilter none(int size) {
+		return new IndexFilter(size, true);
+	}
+
+	/**
+	 * Create an exact filter limiting the keys of one property to the
+	 * inclusive range, where UNLIMITED_MIN and UNLIMITED_MAX can be used for
+	 * open ranges.
+	 */
+	public static IndexFilter range(int size, int position, int min, int max) {
+		IndexFilter filter = all(size, true);
+		filter.mins.get(0)[position] = min;
+		filter.maxs.get(0)[position] = max;
+		if (min > max) {
+			return none(size);
+		}
+		return filter;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** @return the number of boxes in the filter */
+	public int getBoxCount() {
+		return mins.size();
+	}
+
+	public int[] getMin(int box) {
+		return mins.get(box);
+	}
+
+	public int[] getMax(int box) {
+		return maxs.get(box);
+	}
+
+	public boolean isExact() {
+		return exact;
+	}
+
+	/** @return true if no index keys can match */
+	public boolean isEmpty() {
+		return mins.isEmpty();
+	}
+
+	/** @return true if the box limits the keys of the property */
+	public boolean isLimited(int box, int position) {
+		return mins.get(box)[position] != UNLIMITED_MIN || maxs.get(box)[position] != UNLIMITED_MAX;
+	}
+
+	/**
+	 * Create the intersection of this filter with another, which contains the
+	 * intersections of all pairs of boxes.
+	 */
+	public IndexFilter and(IndexFilter other) {
+		IndexFilter filter = new IndexFilter(size, exact && other.exact);
+		for (int a = 0; a < mins.size(); a++) {
+			for (int b = 0; b < other.mins.size(); b++) {
+				int[] min = new int[size];
+				int[] max = new int[size];
+				boolean empty = false;
+				for (int i = 0; i < size && !empty; i++) {
+					min[i] = Math.max(mins.get(a)[i], other.mins.get(b)[i]);
+					max[i] = Math.min(maxs.get(a)[i], other.maxs.get(b)[i]);
+					empty = min[i] > max[i];
+				}
+				if (!empty) {
+					filter.addBox(min, max);
+				}
+			}
+		}
+		filter.limitBoxes();
+		return filter;
+	}
+
+	/** Create the union of this filter with another */
+	public IndexFilter or(IndexFilter other) {
+		IndexFilter filter = new IndexFilter(size, exact && other.exact);
+		for (int a = 0; a < mins.size(); a++) {
+			filter.addBox(mins.get(a), maxs.get(a));
+		}
+		for (int b = 0; b < other.mins.size(); b++) {
+			filter.addBox(other.mins.get(b), other.maxs.get(b));
+		}
+		filter.limitBoxes();
+		return filter;
+	}
+
+	/**
+	 * Add a box to the union, unless it is contained in an existing box,
+	 * removing existing boxes contained in it.
+	 */
+	private void addBox(int[] min, int[] max) {
+		for (int b = 0; b < mins.size(); b++) {
+			if (contains(mins.get(b), maxs.get(b), min, max)) {
+				return;
+			}
+		}
+		for (int b = mins.size() - 1; b >= 0; b--) {
+			if (contains(min, max, mins.get(b), maxs.get(b))) {
+				mins.remove(b);
+				maxs.remove(b);
+			}
+		}
+		mins.add(Arrays.copyOf(min, size));
+		maxs.add(Arrays.copyOf(max, size));
+	}
+
+	private static boolean contains(int[] outerMin, int[] outerMax, int[] min, int[] max) {
+		for (int i = 0; i < min.length; i++) {
+			if (min[i] < outerMin[i] || max[i] > outerMax[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replace too many boxes by their bounding box, which is no longer exact
+	 */
+	private void limitBoxes() {
+		if (mins.size() > MAX_BOXES) {
+			int[] min = Arrays.copyOf(mins.get(0), size);
+			int[] max = Arrays.copyOf(maxs.get(0), size);
+			for (int b = 1; b < mins.size(); b++) {
+				for (int i = 0; i < size; i++) {
+					min[i] = Math.min(min[i], mins.get(b)[i]);
+					max[i] = Math.max(max[i], maxs.get(b)[i]);
+				}
+			}
+			mins.clear();
+			maxs.clear();
+			mins.add(min);
+			maxs.add(max);
+			exact = false;
+		}
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		for (int b = 0; b < mins.size(); b++) {
+			if (sb.length() > 0)
+				sb.append(" or ");
+			sb.append("[");
+			for (int i = 0; i < size; i++) {
+				if (i > 0)
+					sb.append(", ");
+				int min = mins.get(b)[i];
+				int max = maxs.get(b)[i];
+				sb.append(min == UNLIMITED_MIN ? "*" : String.valueOf(min)).append("..");
+				sb.append(max == UNLIMITED_MAX ? "*" : String.valueOf(max));
+			}
+			sb.append("]");
+		}
+		return "IndexFilter" + (exact ? "[exact]" : "") + "(" + sb + ")";
+	}
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.util.Arrays;
 
 import org.amanzi.index.AmanziIndexRelationshipTypes;
+import org.amanzi.index.aggregators.IndexStatistics;
+import org.amanzi.index.mappers.Mapper;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -25,6 +27,7 @@ public class IndexLevel {
 	private int[] values; // currently evaluated low level keys (level 0)
 	private Node indexNode = null; // current node at this level
 	private IndexConfig config;
+	private ChildLookupCache childCache; // optional cache for finding children
 
 	/**
 	 * This constructor is used to build index levels dynamically as the data is
@@ -35,10 +38,25 @@ public class IndexLevel {
 	 * @param IndexConfig
 	 */
 	public IndexLevel(int level, IndexConfig config, GraphDatabaseService neo) throws IOException {
+		this(level, config, neo, null);
+	}
+
+	/**
+	 * This constructor is used to build index levels dynamically as the data is
+	 * being loaded into the database. This is the first call, when no origin
+	 * and no lower Node is known. All levels built on top of this one will
+	 * share the ChildLookupCache for finding existing child index nodes.
+	 * 
+	 * @param level
+	 * @param IndexConfig
+	 * @param childCache
+	 */
+	public IndexLevel(int level, IndexConfig config, GraphDatabaseService neo, ChildLookupCache childCache) throws IOException {
 		if (level != 0)
 			throw new IOException("Incorrect level " + level + ", must be zero");
 		this.level = level;
 		this.config = config;
+		this.childCache = childCache;
 		this.indices = new int[config.size()];
 		this.values = new int[config.size()];
 		makeIndexNode(neo);
@@ -58,10 +76,14 @@ public class IndexLevel {
 	public IndexLevel(int level, IndexConfig config, IndexLevel lowerLevel) throws IOException {
 		this.level = level;
 		this.config = config;
+		this.childCache = lowerLevel.childCache;
 		this.values = Arrays.copyOf(lowerLevel.getValues(), lowerLevel.getValues().length);
 		this.indices = config.keysFor(values, level);
 		makeIndexNode(lowerLevel.getIndexNode().getGraphDatabase());
 		linkTo(lowerLevel.getIndexNode());
+		// The new parent covers everything already indexed below it
+		indexNode.setProperty("count", lowerLevel.getCount());
+		IndexStatistics.copy(lowerLevel.getIndexNode(), indexNode);
 	}
 
 	/**
@@ -75,18 +97,47 @@ public class IndexLevel {
 	 * @throws IOException
 	 */
 	public IndexLevel(IndexConfig config, Node indexNode) {
+		this(config, indexNode, null);
+	}
+
+	/**
+	 * This constructor is used to build the index levels based on existing
+	 * index nodes in the database, using the ChildLookupCache for finding
+	 * existing child index nodes.
+	 * 
+	 * @param IndexConfig
+	 * @param indexNode
+	 * @param childCache
+	 */
+	public IndexLevel(IndexConfig config, Node indexNode, ChildLookupCache childCache) {
 		this.config = config;
+		this.childCache = childCache;
 		this.indexNode = indexNode;
-		this.indices = (int[]) indexNode.getProperty("index");
+		this.indices = config.getKeyCodec().decode(indexNode.getProperty("index"));
 		this.level = (Integer) indexNode.getProperty("level");
 	}
 
+	/**
+	 * This constructor is used to build an index level with no current index
+	 * node, which is found or created below the index node of the level above
+	 * by the first call to setKeys. This allows a separate stack of index
+	 * levels to be built below an existing index node.
+	 * 
+	 * @param level
+	 * @param IndexConfig
+	 * @param childCache
+	 */
+	public IndexLevel(int level, IndexConfig config, ChildLookupCache childCache) {
+		this.level = level;
+		this.config = config;
+		this.childCache = childCache;
+	}
+
 	public IndexLevel setKeys(IndexLevel parentLevel, int[] newVals) throws IOException {
 		if (!Arrays.equals(newVals, this.values)) {
 			this.values = newVals;
-			int[] newIndices = config.keysFor(newVals, level);
-			if (!Arrays.equals(newIndices, this.indices)) {
-				this.indices = newIndices;
+			if (!includes(newVals)) {
+				this.indices = config.keysFor(newVals, level);
 				this.indexNode = null;
 			}
 		}
@@ -99,17 +150,29 @@ public class IndexLevel {
 		if (this.indexNode == null) {
 			this.makeIndexNode(parentLevel.getIndexNode().getGraphDatabase());
 			parentLevel.linkTo(this.indexNode);
+			if (childCache != null) {
+				childCache.addChild(parentLevel.indexNode, this.indexNode, indices);
+			}
 		}
 		return this;
 	}
 
+	/**
+	 * Forget the current index node, so that the next call to setKeys finds or
+	 * creates the index node for the keys below the new parent level, even if
+	 * the keys are the same.
+	 */
+	public void clearIndexNode() {
+		indexNode = null;
+	}
+
 	public Node makeIndexNode(GraphDatabaseService neo) throws IOException {
 		if (indexNode == null) {
 			indexNode = neo.createNode();
-			indexNode.setProperty("index", indices);
+			indexNode.setProperty("index", config.getKeyCodec().encode(indices));
 			indexNode.setProperty("type", "multi_index");
 			indexNode.setProperty("level", getLevel());
-			// TODO: Support aggregation, add function nodes to it
+			indexNode.setProperty("count", 0);
 		}
 		return indexNode;
 	}
@@ -121,10 +184,13 @@ public class IndexLevel {
 	}
 
 	public void searchChildrenOf(Node parentIndex) {
+		if (childCache != null) {
+			indexNode = childCache.getChild(parentIndex, indices);
+			return;
+		}
 		for (Relationship rel : parentIndex.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
 			Node child = rel.getEndNode();
-			int[] testIndex = (int[]) child.getProperty("index");
-			if (Arrays.equals(testIndex, indices)) {
+			if (config.getKeyCodec().matches(child.getProperty("index"), indices)) {
 				indexNode = child;
 				break;
 			}
@@ -135,6 +201,24 @@ public class IndexLevel {
 		return level;
 	}
 
+	/**
+	 * @return the number of data nodes indexed below the current index node of
+	 *         this level
+	 */
+	public int getCount() {
+		return indexNode == null ? 0 : (Integer) indexNode.getProperty("count", 0);
+	}
+
+	/**
+	 * Record that one more data node was indexed below the current index node
+	 * of this level.
+	 */
+	public void incrementCount() {
+		if (indexNode != null) {
+			indexNode.setProperty("count", getCount() + 1);
+		}
+	}
+
 	public boolean isOrigin() {
 		for (int key : indices) {
 			if (key != 0)
@@ -143,10 +227,20 @@ public class IndexLevel {
 		return true;
 	}
 
+	/**
+	 * Test if the level 0 keys fall within the current index node of this
+	 * level. This is called for many levels for every node indexed, so the
+	 * keys are converted one at a time, without allocating a new array, and we
+	 * exit on the first mismatch.
+	 */
 	public boolean includes(int[] newVals) {
-		// TODO: Optimize by exiting the loop on first element mismatch
-		int[] newIndices = config.keysFor(newVals, level);
-		return Arrays.equals(newIndices, this.indices);
+		if (indices == null || newVals.length != indices.length)
+			return false;
+		for (int i = 0; i < newVals.length; i++) {
+			if (config.keyFor(newVals[i], level) != indices[i])
+				return false;
+		}
+		return true;
 	}
 
 	public Node getIndexNode() {
@@ -157,6 +251,11 @@ public class IndexLevel {
 		return values;
 	}
 
+	/** @return the keys of the current index node at this level */
+	public int[] getIndices() {
+		return indices;
+	}
+
 	public String toString() {
 		StringBuffer it = new StringBuffer();
 		for (int key : indices) {
@@ -167,23 +266,47 @@ public class IndexLevel {
 		return "IndexLevel[" + level + "]: " + it;
 	}
 
-	public void buildIndexFilter(int[] min, int[] max, String propertyName, Object minValue, Object maxValue) {
-		if (minValue != null || maxValue != null) {
-			PropertyConfig<?> property = config.getProperty(propertyName);
-			int position = config.getPropertyPosition(propertyName);
-			if (minValue != null) {
-				int key = property.getMapper().toKey(minValue);
-				int index = config.keyFor(key, level);
-				if (index < min[position])
-					min[position] = index;
+	/**
+	 * Build the exact index filter limiting the keys of the property at this
+	 * level to the range of the values, where a null value leaves that side of
+	 * the range open. If the mapper has no key for a value yet, the keys are
+	 * not limited at all, since the key the value will be given is not known.
+	 * Nor are they for a range of values if the mapper does not keep the order
+	 * of the values in its keys, since matching values can have any key, and
+	 * only equal values can be found by their key.
+	 */
+	public IndexFilter buildIndexFilter(String propertyName, Object minValue, Object maxValue) {
+		PropertyConfig<?> property = config.getProperty(propertyName);
+		int position = config.getPropertyPosition(propertyName);
+		if (!property.getMapper().isOrderPreserving()
+				&& (minValue == null || maxValue == null || property.getMapper().compare(minValue, maxValue) != 0)) {
+			return buildIndexFilter();
+		}
+		int min = IndexFilter.UNLIMITED_MIN;
+		int max = IndexFilter.UNLIMITED_MAX;
+		if (minValue != null) {
+			int key = property.getMapper().keyFor(minValue);
+			if (key == Mapper.NO_KEY) {
+				return buildIndexFilter();
 			}
-			if (maxValue != null) {
-				int key = property.getMapper().toKey(maxValue);
-				int index = config.keyFor(key, level);
-				if (index > max[position])
-					max[position] = index;
+			min = config.keyFor(key, level);
+		}
+		if (maxValue != null) {
+			int key = property.getMapper().keyFor(maxValue);
+			if (key == Mapper.NO_KEY) {
+				return buildIndexFilter();
 			}
+			max = config.keyFor(key, level);
 		}
+		return IndexFilter.range(config.size(), position, min, max);
+	}
+
+	/**
+	 * Build the index filter that does not limit the keys at this level, and is
+	 * not exact, for conditions that cannot filter on the index.
+	 */
+	public IndexFilter buildIndexFilter() {
+		return IndexFilter.all(config.size(), false);
 	}
 
 }
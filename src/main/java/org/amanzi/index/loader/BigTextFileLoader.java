@@ -3,10 +3,16 @@ package org.amanzi.index.loader;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -14,6 +20,8 @@ import java.util.zip.ZipFile;
 public class BigTextFileLoader implements Iterable<String> {
 
 	private ZipFile _zipFile;
+	private Enumeration<? extends ZipEntry> _zipEntries;
+	private String _header; // first line, skipped at the start of later zip entries
     private BufferedReader _reader;
     private long _size = 0;
     private String _name;
@@ -49,6 +57,215 @@ public class BigTextFileLoader implements Iterable<String> {
     	return new FileIterator();
     }
     
+    /**
+     * Split an uncompressed file into byte ranges aligned to line boundaries, that can
+     * be read concurrently by separate threads, each with its own FileChunk. The first
+     * line of the file is the header, which is not returned by any of the chunks, but
+     * is available from all of them with getHeader(). Small files can give fewer
+     * chunks than requested.
+     */
+    public static List<FileChunk> split(String filePath, int count) throws IOException {
+    	File file = new File(filePath);
+    	String name = file.getName().toLowerCase();
+    	if (file.isDirectory() || name.endsWith("zip") || name.endsWith("gz")) {
+    		throw new IOException("Only uncompressed files can be split: " + filePath);
+    	}
+    	ArrayList<FileChunk> chunks = new ArrayList<FileChunk>();
+    	RandomAccessFile raf = new RandomAccessFile(file, "r");
+    	try {
+    		long size = raf.length();
+    		long start = nextLineStart(raf, 0);
+    		byte[] headerBytes = new byte[(int) start];
+    		raf.seek(0);
+    		raf.readFully(headerBytes);
+    		String header = new String(headerBytes).replaceAll("[\\r\\n]+$", "");
+    		long chunkSize = Math.max(1, (size - start) / Math.max(1, count));
+    		for (int i = 1; i <= count && start < size; i++) {
+    			long end = i == count ? size : nextLineStart(raf, start + chunkSize);
+    			chunks.add(new FileChunk(file, start, end, header));
+    			start = end;
+    		}
+    	} finally {
+    		raf.close();
+    	}
+    	return chunks;
+    }
+    
+    /**
+     * @return the position after the first line break at or after the specified
+     *         position, or the file size if there is none
+     */
+    private static long nextLineStart(RandomAccessFile raf, long position) throws IOException {
+    	byte[] buffer = new byte[8192];
+    	raf.seek(position);
+    	int read;
+    	while ((read = raf.read(buffer)) > 0) {
+    		for (int i = 0; i < read; i++) {
+    			if (buffer[i] == '\n') {
+    				return position + i + 1;
+    			}
+    		}
+    		position += read;
+    	}
+    	return raf.length();
+    }
+    
+    /**
+     * A range of lines in an uncompressed file, as created by split(String, int). Each
+     * chunk reads the file independently with its own reader, so separate chunks can be
+     * read by separate threads. A failure to read the file is thrown from the iterator
+     * as a RuntimeException.
+     */
+    public static class FileChunk implements Iterable<String> {
+    	private final File _file;
+    	private final long _start;
+    	private final long _end;
+    	private final String _header;
+    	private BufferedReader _reader;
+    	
+    	private FileChunk(File file, long start, long end, String header) {
+    		_file = file;
+    		_start = start;
+    		_end = end;
+    		_header = header;
+    	}
+    	
+    	/** Open this chunk of the file for reading */
+    	public void open() throws IOException {
+    		close();
+    		InputStream stream = new FileInputStream(_file);
+    		long skipped = 0;
+    		while (skipped < _start) {
+    			long skip = stream.skip(_start - skipped);
+    			if (skip <= 0) {
+    				stream.close();
+    				throw new IOException("Failed to skip to position " + _start + " in " + _file);
+    			}
+    			skipped += skip;
+    		}
+    		_reader = new BufferedReader(new InputStreamReader(new RangeInputStream(stream, _end - _start)));
+    	}
+    	
+    	public void close() {
+    		if (_reader != null) {
+    			try {
+    				_reader.close();
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    			_reader = null;
+    		}
+    	}
+    	
+    	public Iterator<String> iterator() {
+    		if (_reader == null) {
+    			throw new IllegalStateException("No open File");
+    		}
+    		return new Iterator<String>() {
+    			private String _cachedLine = null;
+    			
+    			public boolean hasNext() {
+    				if (_cachedLine == null) {
+    					_cachedLine = readLine();
+    				}
+    				return _cachedLine != null;
+    			}
+    			
+    			public String next() {
+    				if (!hasNext()) {
+    					throw new NoSuchElementException();
+    				}
+    				String result = _cachedLine;
+    				_cachedLine = null;
+    				return result;
+    			}
+    			
+    			public void remove() {
+    				throw new UnsupportedOperationException();
+    			}
+    			
+    			private String readLine() {
+    				try {
+    					return _reader.readLine();
+    				} catch (IOException e) {
+    					throw new RuntimeException("Failed to read " + FileChunk.this + ": " + e.getMessage(), e);
+    				}
+    			}
+    		};
+    	}
+    	
+    	/** @return the header line of the file */
+    	public String getHeader() {
+    		return _header;
+    	}
+    	
+    	public long getStart() {
+    		return _start;
+    	}
+    	
+    	public long getEnd() {
+    		return _end;
+    	}
+    	
+    	public long getFileSize() {
+    		return _end - _start;
+    	}
+    	
+    	public String getFileName() {
+    		return _file.getName();
+    	}
+    	
+    	public String toString() {
+    		return "FileChunk[" + _file.getName() + ":" + _start + "-" + _end + "]";
+    	}
+    }
+    
+    /** An input stream limited to the specified number of bytes */
+    private static class RangeInputStream extends FilterInputStream {
+    	private long _remaining;
+    	
+    	private RangeInputStream(InputStream stream, long length) {
+    		super(stream);
+    		_remaining = length;
+    	}
+    	
+    	public int read() throws IOException {
+    		if (_remaining <= 0) {
+    			return -1;
+    		}
+    		int b = super.read();
+    		if (b >= 0) {
+    			_remaining--;
+    		}
+    		return b;
+    	}
+    	
+    	public int read(byte[] b, int off, int len) throws IOException {
+    		if (_remaining <= 0) {
+    			return -1;
+    		}
+    		int read = super.read(b, off, (int) Math.min(len, _remaining));
+    		if (read > 0) {
+    			_remaining -= read;
+    		}
+    		return read;
+    	}
+    	
+    	public long skip(long n) throws IOException {
+    		long skipped = super.skip(Math.min(n, _remaining));
+    		_remaining -= skipped;
+    		return skipped;
+    	}
+    	
+    	public int available() throws IOException {
+    		return (int) Math.min(super.available(), _remaining);
+    	}
+    	
+    	public boolean markSupported() {
+    		return false;
+    	}
+    }
+    
     public long getFileSize() {
     	return _size;
     }
@@ -65,12 +282,10 @@ public class BigTextFileLoader implements Iterable<String> {
     	} else {
     		String name = file.getName();
     		if (name.toLowerCase().endsWith("zip")) {
-    			// One entry only
+    			// All entries are read in turn, see nextZipEntry()
     			_zipFile = new ZipFile(file);
-    			ZipEntry ze = (ZipEntry) _zipFile.entries().nextElement();
-				_name = ze.getName();
-				_size = ze.getSize();
-				return getBufferedReader(_zipFile.getInputStream(ze));		
+    			_zipEntries = _zipFile.entries();
+    			return nextZipEntry();
     		} else {
         		_size = file.length();
         		_name = name;
@@ -83,6 +298,22 @@ public class BigTextFileLoader implements Iterable<String> {
     	}    	
     }
  
+    /**
+     * Open the next file entry of the zip file, skipping directories, and return null
+     * if there are no more. The name and size are those of the current entry.
+     */
+    private BufferedReader nextZipEntry() throws IOException {
+    	while (_zipEntries != null && _zipEntries.hasMoreElements()) {
+    		ZipEntry ze = _zipEntries.nextElement();
+    		if (!ze.isDirectory()) {
+    			_name = ze.getName();
+    			_size = ze.getSize();
+    			return getBufferedReader(_zipFile.getInputStream(ze));
+    		}
+    	}
+    	return null;
+    }
+    
     private BufferedReader getBufferedReader(InputStream stream) {
     	return new BufferedReader(new InputStreamReader(stream));
     }
@@ -117,9 +348,30 @@ public class BigTextFileLoader implements Iterable<String> {
 			throw new UnsupportedOperationException();
 		}
 	
+		/**
+		 * Read the next line, moving on to the next entry of a zip file at the end of
+		 * each entry. Entries of a zip file commonly each start with the same header
+		 * line, so a first line of a later entry equal to the header is skipped.
+		 */
 		private String readLine() {
 		    try {
-		    	return _reader.readLine();
+		    	String line = _reader.readLine();
+		    	if (_header == null) {
+		    		_header = line;
+		    	}
+		    	while (line == null && _zipEntries != null) {
+		    		BufferedReader reader = nextZipEntry();
+		    		if (reader == null) {
+		    			break;
+		    		}
+		    		_reader.close();
+		    		_reader = reader;
+		    		line = _reader.readLine();
+		    		if (line != null && line.equals(_header)) {
+		    			line = _reader.readLine();
+		    		}
+		    	}
+		    	return line;
 		    } catch (IOException e) {
 				// TODO log
 				e.printStackTrace();
@@ -0,0 +1,459 @@
+package org.amanzi.index.loader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.amanzi.index.AmanziIndex;
+import org.amanzi.index.config.PropertyConfig;
+import org.amanzi.index.util.FileUtilities;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * This class loads delimited text files, like the xDR exports, into the
+ * database and the index. The work is split into a pipeline of three stages:
+ * <ul>
+ * <li>the calling thread reads the lines, and passes them on in chunks</li>
+ * <li>a pool of worker threads split the lines with the delimiter of the header
+ * line, and parse the values of each column</li>
+ * <li>a single writer thread creates the data nodes and adds them to the index,
+ * committing a transaction for each batch of nodes</li>
+ * </ul>
+ * The stages are connected by bounded queues, so a slow writer blocks the
+ * reader instead of letting parsed lines fill the memory. The order of the
+ * parsed chunks can change between the workers and the writer.
+ * <p>
+ * Uncompressed files are read with the MappedTextFileLoader, which splits the
+ * lines into fields in the mapped file buffer, and only decodes the fields of
+ * the columns to be stored. Restricting the columns with setColumns, for
+ * example to the index properties, avoids decoding the others at all. Zip and
+ * gzip files are read with the ParallelArchiveLoader, which decompresses
+ * several zip entries at a time.
+ * </p>
+ * <p>
+ * Columns that are properties of the index are parsed with the mapper of the
+ * property, other columns are parsed with the type set by setColumnType, or
+ * kept as strings. Empty values are not stored. Values that fail to parse are
+ * counted, and only the first few are reported, so a file with a bad column
+ * does not flood the error output.
+ * </p>
+ * <p>
+ * A failed load is not rolled back. The batch being written when another stage
+ * fails is rolled back, but the batches committed before it stay in the
+ * database, and the writer still finishes up the index with them before the
+ * failure is thrown, so the index config is up to date. If the writer itself
+ * fails while adding to the index, the index is not finished up, and should be
+ * rebuilt.
+ * </p>
+ */
+public class IndexLoader {
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+	public static final int DEFAULT_QUEUE_SIZE = 20;
+	public static final int DEFAULT_TRANSACTION_SIZE = 10000;
+	public static final int MAX_REPORTED_ERRORS = 10;
+	private static final Chunk END = new Chunk(null);
+	private final GraphDatabaseService db;
+	private final AmanziIndex index;
+	private final HashMap<String, String> columnTypes = new HashMap<String, String>();
+	private HashSet<String> selectedColumns; // null to store all columns
+	private int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private int transactionSize = DEFAULT_TRANSACTION_SIZE;
+	private final AtomicInteger countErrors = new AtomicInteger();
+	private volatile Throwable failure; // first failure in any stage
+
+	/**
+	 * A chunk of lines passed from the reader to the workers, and then as
+	 * parsed rows from the workers to the writer. The lines are either the
+	 * String of the whole line, or the Fields of a mapped line, copied out of
+	 * the mapped buffer but not yet decoded.
+	 */
+	private static class Chunk {
+		private final ArrayList<Object> lines;
+		private ArrayList<Object[]> rows;
+
+		private Chunk(ArrayList<Object> lines) {
+			this.lines = lines;
+		}
+	}
+
+	public IndexLoader(GraphDatabaseService db, AmanziIndex index) {
+		this.db = db;
+		this.index = index;
+	}
+
+	/** Set the number of worker threads parsing lines */
+	public void setWorkers(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+
+	/** Set the number of lines passed to a worker at a time */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/** Set the number of chunks each queue can hold before blocking */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	/** Set the number of data nodes created and indexed per transaction */
+	public void setTransactionSize(int transactionSize) {
+		this.transactionSize = Math.max(1, transactionSize);
+	}
+
+	/**
+	 * Set the type of a column that is not an index property. Supported types
+	 * are 'integer', 'long', 'float', 'double', 'boolean' and 'string'.
+	 */
+	public void setColumnType(String column, String type) {
+		columnTypes.put(column, type);
+	}
+
+	/**
+	 * Only store the specified columns in the data nodes, instead of all
+	 * columns of the file.
+	 */
+	public void setColumns(Collection<String> columns) {
+		this.selectedColumns = columns == null ? null : new HashSet<String>(columns);
+	}
+
+	/** @return the number of values that failed to parse in the last load */
+	public int getErrorCount() {
+		return countErrors.get();
+	}
+
+	/**
+	 * Load the text file, which can be plain, gzip or zip, and return the
+	 * number of data nodes created.
+	 */
+	public long load(String filePath) throws IOException {
+		String lower = filePath.toLowerCase();
+		if (lower.endsWith("zip") || lower.endsWith("gz")) {
+			return loadCompressed(filePath);
+		} else {
+			return loadMapped(filePath);
+		}
+	}
+
+	private long loadMapped(String filePath) throws IOException {
+		MappedTextFileLoader file = new MappedTextFileLoader();
+		file.open(filePath);
+		try {
+			Iterator<MappedTextFileLoader.Line> lines = file.iterator();
+			if (!lines.hasNext()) {
+				return 0;
+			}
+			String header = lines.next().toString();
+			String delimiter = FileUtilities.getDelimiter(header);
+			if (delimiter == null) {
+				throw new IOException("Unable to determine the delimiter of " + filePath + " from the header: " + header);
+			}
+			file.setDelimiter(delimiter);
+			Pattern splitter = Pattern.compile(Pattern.quote(delimiter));
+			return load(lines, splitter, splitter.split(header, -1));
+		} finally {
+			file.close();
+		}
+	}
+
+	private long loadCompressed(String filePath) throws IOException {
+		ParallelArchiveLoader file = new ParallelArchiveLoader();
+		file.open(filePath);
+		try {
+			String header = file.getHeader();
+			if (header == null) {
+				return 0;
+			}
+			String delimiter = FileUtilities.getDelimiter(header);
+			if (delimiter == null) {
+				throw new IOException("Unable to determine the delimiter of " + filePath + " from the header: " + header);
+			}
+			file.setThreads(workers);
+			Pattern splitter = Pattern.compile(Pattern.quote(delimiter));
+			String[] columns = splitter.split(header, -1);
+			return load(file.iterator(), splitter, columns);
+		} finally {
+			file.close();
+		}
+	}
+
+	private long load(Iterator<?> lines, final Pattern splitter, final String[] columns) throws IOException {
+		failure = null;
+		countErrors.set(0);
+		final boolean[] selected = new boolean[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			selected[i] = selectedColumns == null || selectedColumns.contains(columns[i]);
+		}
+		final BlockingQueue<Chunk> lineQueue = new ArrayBlockingQueue<Chunk>(queueSize);
+		final BlockingQueue<Chunk> rowQueue = new ArrayBlockingQueue<Chunk>(queueSize);
+		ExecutorService executor = Executors.newFixedThreadPool(workers + 1);
+		Future<Long> writer = null;
+		try {
+			writer = executor.submit(new Callable<Long>() {
+				public Long call() throws Exception {
+					return write(rowQueue, columns);
+				}
+			});
+			for (int i = 0; i < workers; i++) {
+				executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						parse(lineQueue, rowQueue, splitter, columns, selected);
+						return null;
+					}
+				});
+			}
+			ArrayList<Object> chunk = new ArrayList<Object>(chunkSize);
+			while (failure == null && lines.hasNext()) {
+				Object line = lines.next();
+				if (line instanceof MappedTextFileLoader.Line) {
+					// Mapped lines are only valid until the next line is read,
+					// so copy the bytes now, and leave the decoding to the
+					// workers
+					MappedTextFileLoader.Line mapped = (MappedTextFileLoader.Line) line;
+					if (mapped.getLength(0) > 0 || mapped.getFieldCount() > 1) {
+						chunk.add(mapped.copy());
+					}
+				} else {
+					chunk.add(line);
+				}
+				if (chunk.size() >= chunkSize) {
+					put(lineQueue, new Chunk(chunk));
+					chunk = new ArrayList<Object>(chunkSize);
+				}
+			}
+			if (chunk.size() > 0) {
+				put(lineQueue, new Chunk(chunk));
+			}
+			for (int i = 0; i < workers; i++) {
+				put(lineQueue, END);
+			}
+			long count = writer.get();
+			if (failure != null) {
+				throw failure;
+			}
+			if (countErrors.get() > MAX_REPORTED_ERRORS) {
+				System.err.println("Failed to parse " + countErrors.get() + " values, of which only the first "
+						+ MAX_REPORTED_ERRORS + " were reported");
+			}
+			return count;
+		} catch (InterruptedException e) {
+			fail(e);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading: " + e.getMessage());
+		} catch (ExecutionException e) {
+			fail(e.getCause());
+			throw loadFailed(failure);
+		} catch (Throwable e) {
+			// Stop the other stages, and let the writer finish up the batches
+			// it has already committed
+			fail(e);
+			awaitWriter(writer);
+			throw loadFailed(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Wait for the writer to end after a failure, ignoring its result, since
+	 * the failure is reported instead.
+	 */
+	private static void awaitWriter(Future<Long> writer) {
+		if (writer != null) {
+			try {
+				writer.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// The first failure is the one reported
+			}
+		}
+	}
+
+	private void fail(Throwable e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	private IOException loadFailed(Throwable e) {
+		IOException ioe = new IOException("Failed to load data: " + e);
+		ioe.initCause(e);
+		return ioe;
+	}
+
+	/**
+	 * Put a chunk on a queue, waiting while the queue is full, unless another
+	 * stage of the pipeline has failed, in which case nobody will take it.
+	 */
+	private void put(BlockingQueue<Chunk> queue, Chunk chunk) throws InterruptedException {
+		while (failure == null) {
+			if (queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Take a chunk from a queue, waiting while the queue is empty, unless
+	 * another stage of the pipeline has failed, in which case nobody will
+	 * put one there.
+	 */
+	private Chunk take(BlockingQueue<Chunk> queue) throws InterruptedException {
+		while (failure == null) {
+			Chunk chunk = queue.poll(100, TimeUnit.MILLISECONDS);
+			if (chunk != null) {
+				return chunk;
+			}
+		}
+		return END;
+	}
+
+	private void parse(BlockingQueue<Chunk> lineQueue, BlockingQueue<Chunk> rowQueue, Pattern splitter, String[] columns,
+			boolean[] selected) throws InterruptedException {
+		try {
+			Chunk chunk = take(lineQueue);
+			while (chunk != END) {
+				chunk.rows = new ArrayList<Object[]>(chunk.lines.size());
+				for (Object line : chunk.lines) {
+					if (line instanceof MappedTextFileLoader.Fields) {
+						chunk.rows.add(parseLine(decode((MappedTextFileLoader.Fields) line, columns, selected), columns, selected));
+					} else if (((String) line).length() > 0) {
+						chunk.rows.add(parseLine(splitter.split((String) line, -1), columns, selected));
+					}
+				}
+				put(rowQueue, chunk);
+				chunk = take(lineQueue);
+			}
+			put(rowQueue, END);
+		} catch (RuntimeException e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	/** Decode the selected, non-empty fields of a mapped line */
+	private String[] decode(MappedTextFileLoader.Fields line, String[] columns, boolean[] selected) {
+		String[] fields = new String[Math.min(columns.length, line.getFieldCount())];
+		for (int i = 0; i < fields.length; i++) {
+			if (selected[i] && !line.isEmpty(i)) {
+				fields[i] = line.getString(i);
+			}
+		}
+		return fields;
+	}
+
+	private Object[] parseLine(String[] fields, String[] columns, boolean[] selected) {
+		Object[] values = new Object[columns.length];
+		for (int i = 0; i < columns.length && i < fields.length; i++) {
+			String text = fields[i];
+			if (selected[i] && text != null && text.length() > 0) {
+				try {
+					values[i] = parseValue(columns[i], text);
+				} catch (NumberFormatException e) {
+					if (countErrors.incrementAndGet() <= MAX_REPORTED_ERRORS) {
+						System.err.println("Failed to parse column '" + columns[i] + "' value '" + text + "': " + e.getMessage());
+					}
+				}
+			}
+		}
+		return values;
+	}
+
+	private Object parseValue(String column, String text) {
+		PropertyConfig<?> property = index.getConfig().getProperty(column);
+		if (property != null) {
+			return property.getMapper().parse(text);
+		}
+		String type = columnTypes.get(column);
+		if (type == null || "string".equalsIgnoreCase(type)) {
+			return text;
+		} else if ("integer".equalsIgnoreCase(type)) {
+			return Integer.parseInt(text);
+		} else if ("long".equalsIgnoreCase(type)) {
+			return Long.parseLong(text);
+		} else if ("float".equalsIgnoreCase(type)) {
+			return Float.parseFloat(text);
+		} else if ("double".equalsIgnoreCase(type)) {
+			return Double.parseDouble(text);
+		} else if ("boolean".equalsIgnoreCase(type)) {
+			return Boolean.parseBoolean(text);
+		} else {
+			throw new IllegalArgumentException("Unsupported type '" + type + "' for column '" + column + "'");
+		}
+	}
+
+	/**
+	 * Create and index the data nodes in the writer thread, until all workers
+	 * have finished. Each transaction holds at least transactionSize nodes,
+	 * and all nodes of a transaction are added to the index together. If
+	 * another stage fails, the current transaction is rolled back, and the
+	 * index is finished up with the batches already committed.
+	 */
+	private long write(BlockingQueue<Chunk> rowQueue, String[] columns) throws InterruptedException {
+		long count = 0;
+		int running = workers;
+		ArrayList<Node> nodes = new ArrayList<Node>(transactionSize);
+		Transaction tx = db.beginTx();
+		try {
+			while (running > 0) {
+				Chunk chunk = take(rowQueue);
+				if (chunk == END) {
+					running--;
+					continue;
+				}
+				for (Object[] row : chunk.rows) {
+					Node node = db.createNode();
+					for (int i = 0; i < columns.length; i++) {
+						if (row[i] != null) {
+							node.setProperty(columns[i], row[i]);
+						}
+					}
+					nodes.add(node);
+				}
+				if (nodes.size() >= transactionSize) {
+					index.addAll(nodes);
+					count += nodes.size();
+					nodes.clear();
+					tx.success();
+					tx.finish();
+					tx = db.beginTx();
+				}
+			}
+			if (failure == null) {
+				index.addAll(nodes);
+				count += nodes.size();
+				index.finishUp();
+				tx.success();
+			} else {
+				tx.finish();
+				tx = db.beginTx();
+				index.finishUp();
+				tx.success();
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+			throw e;
+		} finally {
+			tx.finish();
+		}
+		return count;
+	}
+}
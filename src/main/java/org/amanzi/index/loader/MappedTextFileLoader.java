@@ -0,0 +1,330 @@
+package org.amanzi.index.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This loader reads uncompressed text files through memory mapped windows of
+ * the file, instead of decoding every byte into Strings like the
+ * BufferedReader of the BigTextFileLoader. The line and field boundaries are
+ * found by scanning the bytes of the mapped buffer, and each line is presented
+ * as a Line, giving access to the fields as slices of the buffer. Only fields
+ * that are actually asked for with getString(int) are decoded, so columns that
+ * are not needed cost nothing but the scan.
+ * <p>
+ * The iterator returns the same Line instance for every line, so the contents
+ * must be used before calling next() again, or copied with Line.copy(), which
+ * copies the bytes without decoding them, for example to be decoded by another
+ * thread. Files larger than the window size are mapped one window at a time,
+ * starting each window at the start of a line. A failure to read the file is
+ * thrown from the iterator as a RuntimeException.
+ * </p>
+ */
+public class MappedTextFileLoader implements Iterable<MappedTextFileLoader.Line> {
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private String name;
+	private long size;
+	private byte delimiter = ',';
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+	private Charset charset = Charset.defaultCharset();
+
+	/**
+	 * A single line of the file. The fields are found on demand with the
+	 * delimiter of the loader, when first asked for.
+	 */
+	public class Line {
+		private ByteBuffer buffer;
+		private ByteBuffer view; // duplicate of the buffer for bulk reads
+		private int start;
+		private int end;
+		private int[] fieldStarts = new int[16];
+		private int[] fieldEnds = new int[16];
+		private int fieldCount = -1;
+		private byte[] bytes = new byte[256];
+
+		private void set(ByteBuffer buffer, int start, int end) {
+			if (buffer != this.buffer) {
+				this.view = buffer.duplicate();
+			}
+			this.buffer = buffer;
+			this.start = start;
+			this.end = end;
+			this.fieldCount = -1;
+		}
+
+		private void findFields() {
+			if (fieldCount < 0) {
+				fieldCount = 0;
+				int fieldStart = start;
+				for (int i = start; i <= end; i++) {
+					if (i == end || buffer.get(i) == delimiter) {
+						if (fieldCount == fieldStarts.length) {
+							int[] starts = new int[fieldCount * 2];
+							int[] ends = new int[fieldCount * 2];
+							System.arraycopy(fieldStarts, 0, starts, 0, fieldCount);
+							System.arraycopy(fieldEnds, 0, ends, 0, fieldCount);
+							fieldStarts = starts;
+							fieldEnds = ends;
+						}
+						fieldStarts[fieldCount] = fieldStart;
+						fieldEnds[fieldCount] = i;
+						fieldCount++;
+						fieldStart = i + 1;
+					}
+				}
+			}
+		}
+
+		/** @return the number of fields in the line */
+		public int getFieldCount() {
+			findFields();
+			return fieldCount;
+		}
+
+		/** @return the length in bytes of the field, or 0 if there is no such field */
+		public int getLength(int field) {
+			findFields();
+			return field < fieldCount ? fieldEnds[field] - fieldStarts[field] : 0;
+		}
+
+		public boolean isEmpty(int field) {
+			return getLength(field) == 0;
+		}
+
+		/**
+		 * @return a read-only view of the bytes of the field in the mapped
+		 *         buffer, which is only valid until the next line is read
+		 */
+		public ByteBuffer getBytes(int field) {
+			findFields();
+			ByteBuffer slice = buffer.duplicate();
+			if (field < fieldCount) {
+				slice.limit(fieldEnds[field]).position(fieldStarts[field]);
+			} else {
+				slice.limit(start).position(start);
+			}
+			return slice.slice();
+		}
+
+		/** Decode the field into a String, or null if there is no such field */
+		public String getString(int field) {
+			findFields();
+			if (field >= fieldCount) {
+				return null;
+			}
+			return decode(fieldStarts[field], fieldEnds[field]);
+		}
+
+		private String decode(int from, int to) {
+			int length = to - from;
+			if (length > bytes.length) {
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			}
+			view.position(from);
+			view.get(bytes, 0, length);
+			return new String(bytes, 0, length, charset);
+		}
+
+		/**
+		 * Copy the bytes and field boundaries of the line out of the mapped
+		 * buffer, so that the fields can still be decoded after the next line
+		 * is read.
+		 */
+		public Fields copy() {
+			findFields();
+			byte[] copy = new byte[end - start];
+			view.position(start);
+			view.get(copy);
+			int[] ends = new int[fieldCount];
+			for (int i = 0; i < fieldCount; i++) {
+				ends[i] = fieldEnds[i] - start;
+			}
+			return new Fields(copy, ends, charset);
+		}
+
+		/** Decode the whole line into a String */
+		public String toString() {
+			return decode(start, end);
+		}
+	}
+
+	/**
+	 * The fields of a line copied out of the mapped buffer by Line.copy(),
+	 * which are decoded only when asked for, and can be used by any thread.
+	 */
+	public static class Fields {
+		private final byte[] bytes;
+		private final int[] ends; // each field starts after the previous end
+		private final Charset charset;
+
+		private Fields(byte[] bytes, int[] ends, Charset charset) {
+			this.bytes = bytes;
+			this.ends = ends;
+			this.charset = charset;
+		}
+
+		/** @return the number of fields in the line */
+		public int getFieldCount() {
+			return ends.length;
+		}
+
+		public boolean isEmpty(int field) {
+			return field >= ends.length || ends[field] == startOf(field);
+		}
+
+		/** Decode the field into a String, or null if there is no such field */
+		public String getString(int field) {
+			if (field >= ends.length) {
+				return null;
+			}
+			int start = startOf(field);
+			return new String(bytes, start, ends[field] - start, charset);
+		}
+
+		private int startOf(int field) {
+			return field == 0 ? 0 : ends[field - 1] + 1;
+		}
+	}
+
+	/**
+	 * Open an uncompressed text file for reading. Compressed files must be
+	 * read with the BigTextFileLoader.
+	 */
+	public void open(String filePath) throws IOException {
+		File path = new File(filePath);
+		String lower = path.getName().toLowerCase();
+		if (path.isDirectory()) {
+			throw new IOException("Invalid to load a directory, please load a file: " + filePath);
+		} else if (lower.endsWith("zip") || lower.endsWith("gz")) {
+			throw new IOException("Compressed files cannot be memory mapped: " + filePath);
+		}
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+		name = path.getName();
+		size = channel.size();
+	}
+
+	public void close() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			file = null;
+			channel = null;
+		}
+	}
+
+	/** Set the field delimiter, which must be a single byte character */
+	public void setDelimiter(String delimiter) {
+		if (delimiter == null || delimiter.length() != 1 || delimiter.charAt(0) > 127) {
+			throw new IllegalArgumentException("Delimiter must be a single ASCII character: [" + delimiter + "]");
+		}
+		this.delimiter = (byte) delimiter.charAt(0);
+	}
+
+	/** Set the number of bytes of the file mapped at a time */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = Math.max(1024, windowSize);
+	}
+
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+	public long getFileSize() {
+		return size;
+	}
+
+	public String getFileName() {
+		return name;
+	}
+
+	public Iterator<Line> iterator() {
+		if (channel == null) {
+			throw new IllegalStateException("No open File");
+		}
+		return new LineIterator();
+	}
+
+	private class LineIterator implements Iterator<Line> {
+		private final Line line = new Line();
+		private MappedByteBuffer window;
+		private long windowStart = 0;
+		private int position = 0; // position of the next line in the window
+		private int mapSize = windowSize;
+		private boolean ready = false;
+
+		public boolean hasNext() {
+			if (!ready) {
+				ready = readLine();
+			}
+			return ready;
+		}
+
+		public Line next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			return line;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private boolean readLine() {
+			try {
+				while (true) {
+					if (window == null || position >= window.limit()) {
+						if (!map(windowStart + position)) {
+							return false;
+						}
+					}
+					int limit = window.limit();
+					int end = position;
+					while (end < limit && window.get(end) != '\n') {
+						end++;
+					}
+					if (end == limit && windowStart + limit < size) {
+						// The line continues past the window, so map a new
+						// window starting with this line
+						if (position == 0) {
+							// The line is longer than the whole window
+							mapSize *= 2;
+						}
+						map(windowStart + position);
+						continue;
+					}
+					int lineEnd = end > position && window.get(end - 1) == '\r' ? end - 1 : end;
+					line.set(window, position, lineEnd);
+					position = end + 1;
+					return true;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to read " + name + ": " + e.getMessage(), e);
+			}
+		}
+
+		private boolean map(long start) throws IOException {
+			if (start >= size) {
+				return false;
+			}
+			windowStart = start;
+			position = 0;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(mapSize, size - start));
+			return true;
+		}
+	}
+}
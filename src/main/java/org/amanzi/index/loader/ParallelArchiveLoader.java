@@ -0,0 +1,279 @@
+package org.amanzi.index.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * This loader reads the lines of all entries of a zip file, decompressing
+ * several entries in parallel on a pool of threads, and passing the lines to
+ * the consuming thread through a bounded queue. The lines of different entries
+ * are interleaved in batches, and getCurrentEntry() gives the entry of the last
+ * line returned. Gzip files and plain files are read as a single entry, and
+ * gzip files with several concatenated members are read member after member,
+ * since the boundaries of the members are only known by decompressing them.
+ * <p>
+ * The first line of the first entry is taken as the header, available from
+ * getHeader(), and the first line of every entry is skipped if it is equal to
+ * the header, so the iterator only returns data lines.
+ * </p>
+ */
+public class ParallelArchiveLoader implements Iterable<String> {
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_QUEUE_SIZE = 50;
+	private static final Batch END = new Batch(null, null);
+	private File file;
+	private ZipFile zipFile;
+	private ArrayList<Entry> entries = new ArrayList<Entry>();
+	private String header;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private ExecutorService executor;
+	private volatile Throwable failure;
+	private Entry currentEntry;
+
+	/** The name and uncompressed size of an entry, where known */
+	public static class Entry {
+		private final String name;
+		private final long size;
+		private final ZipEntry zipEntry;
+
+		private Entry(String name, long size, ZipEntry zipEntry) {
+			this.name = name;
+			this.size = size;
+			this.zipEntry = zipEntry;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/** @return the uncompressed size, or -1 if it is not known */
+		public long getSize() {
+			return size;
+		}
+
+		public String toString() {
+			return name + "@" + size;
+		}
+	}
+
+	private static class Batch {
+		private final Entry entry;
+		private final ArrayList<String> lines;
+
+		private Batch(Entry entry, ArrayList<String> lines) {
+			this.entry = entry;
+			this.lines = lines;
+		}
+	}
+
+	public void open(String filePath) throws IOException {
+		file = new File(filePath);
+		if (file.isDirectory()) {
+			throw new IOException("Invalid to load a directory, please load a file: " + filePath);
+		}
+		String name = file.getName();
+		if (name.toLowerCase().endsWith("zip")) {
+			zipFile = new ZipFile(file);
+			Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements()) {
+				ZipEntry ze = zipEntries.nextElement();
+				if (!ze.isDirectory()) {
+					entries.add(new Entry(ze.getName(), ze.getSize(), ze));
+				}
+			}
+		} else if (name.toLowerCase().endsWith("gz")) {
+			entries.add(new Entry(name.substring(0, name.length() - (name.toLowerCase().endsWith(".gz") ? 3 : 2)), -1, null));
+		} else {
+			entries.add(new Entry(name, file.length(), null));
+		}
+		if (entries.size() > 0) {
+			BufferedReader reader = getBufferedReader(entries.get(0));
+			try {
+				header = reader.readLine();
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	public void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (zipFile != null) {
+			try {
+				zipFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			zipFile = null;
+		}
+	}
+
+	/** Set the number of threads decompressing entries */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/** Set the number of lines passed to the consumer at a time */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/** Set the number of batches the queue can hold before blocking */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	/** @return the header line of the first entry */
+	public String getHeader() {
+		return header;
+	}
+
+	/** @return the entries that will be read */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * Start reading all entries in parallel. Only one iterator can be used at
+	 * a time.
+	 */
+	public Iterator<String> iterator() {
+		if (file == null) {
+			throw new IllegalStateException("No open File");
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		failure = null;
+		final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(queueSize);
+		final AtomicInteger running = new AtomicInteger(entries.size());
+		executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, entries.size())));
+		for (final Entry entry : entries) {
+			executor.submit(new Runnable() {
+				public void run() {
+					try {
+						read(entry, queue);
+					} catch (InterruptedException e) {
+						// The consumer closed the loader
+						return;
+					} catch (Throwable e) {
+						failure = e;
+					}
+					if (running.decrementAndGet() == 0) {
+						try {
+							queue.put(END);
+						} catch (InterruptedException e) {
+						}
+					}
+				}
+			});
+		}
+		if (entries.isEmpty()) {
+			queue.add(END);
+		}
+		return new LineIterator(queue);
+	}
+
+	private void read(Entry entry, BlockingQueue<Batch> queue) throws IOException, InterruptedException {
+		BufferedReader reader = getBufferedReader(entry);
+		try {
+			ArrayList<String> lines = new ArrayList<String>(batchSize);
+			String line = reader.readLine();
+			if (line != null && line.equals(header)) {
+				line = reader.readLine();
+			}
+			while (line != null) {
+				lines.add(line);
+				if (lines.size() >= batchSize) {
+					queue.put(new Batch(entry, lines));
+					lines = new ArrayList<String>(batchSize);
+				}
+				line = reader.readLine();
+			}
+			if (lines.size() > 0) {
+				queue.put(new Batch(entry, lines));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private BufferedReader getBufferedReader(Entry entry) throws IOException {
+		InputStream stream;
+		if (entry.zipEntry != null) {
+			stream = zipFile.getInputStream(entry.zipEntry);
+		} else if (file.getName().toLowerCase().endsWith("gz")) {
+			// GZIPInputStream continues with any following members
+			stream = new GZIPInputStream(new FileInputStream(file));
+		} else {
+			stream = new FileInputStream(file);
+		}
+		return new BufferedReader(new InputStreamReader(stream));
+	}
+
+	/** @return the entry of the last line returned by the iterator */
+	public Entry getCurrentEntry() {
+		return currentEntry;
+	}
+
+	private class LineIterator implements Iterator<String> {
+		private final BlockingQueue<Batch> queue;
+		private Batch batch;
+		private int position = 0;
+
+		private LineIterator(BlockingQueue<Batch> queue) {
+			this.queue = queue;
+		}
+
+		public boolean hasNext() {
+			while (batch != END && (batch == null || position >= batch.lines.size())) {
+				try {
+					batch = queue.take();
+					position = 0;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while reading " + file, e);
+				}
+			}
+			if (failure != null) {
+				throw new RuntimeException("Failed to read " + file + ": " + failure.getMessage(), failure);
+			}
+			return batch != END;
+		}
+
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			currentEntry = batch.entry;
+			return batch.lines.get(position++);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
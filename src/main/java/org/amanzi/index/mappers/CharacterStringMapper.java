@@ -40,8 +40,7 @@ public class CharacterStringMapper implements Mapper<String> {
 	public static final int DEFAULT_WIDTH = 94;
 	public static final String DEFAULT_ORIGIN = "A";
 	public static final int DEFAULT_DEPTH = 2;
-	protected String min;
-	protected String max;
+	private final RangeTracker<String> range;
 	protected String origin = DEFAULT_ORIGIN;
 	protected char[] originChars;
 	protected int depth = DEFAULT_DEPTH;
@@ -155,8 +154,7 @@ public class CharacterStringMapper implements Mapper<String> {
 			this.origin += origin.substring(origin.length() - 1);
 		if (this.origin.length() > depth)
 			this.origin = this.origin.substring(0, depth);
-		this.min = (min == null) ? this.origin : min;
-		this.max = (max == null) ? this.origin : max;
+		this.range = new RangeTracker<String>((min == null) ? this.origin : min, (max == null) ? this.origin : max);
 		this.depth = depth;
 		this.root = root;
 		this.width = width;
@@ -200,11 +198,11 @@ public class CharacterStringMapper implements Mapper<String> {
 	}
 
 	public String getMin() {
-		return min;
+		return range.getMin();
 	}
 
 	public String getMax() {
-		return max;
+		return range.getMax();
 	}
 
 	public String getOrigin() {
@@ -266,10 +264,13 @@ public class CharacterStringMapper implements Mapper<String> {
 	 * ). So for i=0, we have simply k = s - o, but for i=1
 	 */
 	public int toKey(Object obj) {
-		String value = (String) obj;
-		min = value.compareTo(min) < 0 ? value : min;
-		max = value.compareTo(max) > 0 ? value : max;
-		return (int) calcKey(value);
+		range.add((String) obj);
+		return keyFor(obj);
+	}
+
+	/** Calculate the key as for toKey(Object), without recording the value */
+	public int keyFor(Object obj) {
+		return (int) calcKey((String) obj);
 	}
 
 	/** Return the text without any changes */
@@ -282,6 +283,11 @@ public class CharacterStringMapper implements Mapper<String> {
 		return a.toString().compareTo(b.toString());
 	}
 
+	/** Strings are mapped to keys by their leading characters */
+	public boolean isOrderPreserving() {
+		return true;
+	}
+
 	/**
 	 * Even thought the point of the index is to allow for a small range of key
 	 * values, and int (or even short) should be fine, and the API specifies
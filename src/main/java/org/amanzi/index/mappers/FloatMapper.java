@@ -52,10 +52,8 @@ public class FloatMapper extends NumberMapper<Float> {
 		return new FloatMapper(min, max, (max - min) / (float) categories);
 	}
 
-	public int toKey(Object obj) {
+	public int keyFor(Object obj) {
 		Float value = (Float) obj;
-		min = Math.min(value, min);
-		max = Math.max(value, max);
 		int offset = value < origin ? -1 : 0;
 		return (int) ((value - origin - offset) / step + offset);
 	}
@@ -65,7 +63,7 @@ public class FloatMapper extends NumberMapper<Float> {
 	}
 
 	public int getCategories() {
-		return (int) ((max - min) / step);
+		return (int) ((getMax() - getMin()) / step);
 	}
 
 	@Override
@@ -74,7 +72,7 @@ public class FloatMapper extends NumberMapper<Float> {
 	}
 
 	public String toString() {
-		return "FloatMapper: min[" + min + "] origin[" + origin + "] max[" + origin + "] step[" + step + "] categories["
+		return "FloatMapper: min[" + getMin() + "] origin[" + origin + "] max[" + origin + "] step[" + step + "] categories["
 				+ getCategories() + "]";
 	}
 
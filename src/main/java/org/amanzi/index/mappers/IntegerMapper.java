@@ -53,10 +53,8 @@ public class IntegerMapper extends NumberMapper<Integer> {
 		return new IntegerMapper(min, max, (max - min) / categories);
 	}
 
-	public int toKey(Object obj) {
+	public int keyFor(Object obj) {
 		Integer value = (Integer) obj;
-		min = Math.min(value, min);
-		max = Math.max(value, max);
 		int offset = value < origin ? -1 : 0;
 		return (value - origin - offset) / step + offset;
 	}
@@ -71,11 +69,11 @@ public class IntegerMapper extends NumberMapper<Integer> {
 	}
 
 	public int getCategories() {
-		return (max - min) / step;
+		return (getMax() - getMin()) / step;
 	}
 
 	public String toString() {
-		return "IntegerMapper: min[" + min + "] origin[" + origin + "] max["
+		return "IntegerMapper: min[" + getMin() + "] origin[" + origin + "] max["
 				+ origin + "] step[" + step + "] categories[" + getCategories()
 				+ "]";
 	}
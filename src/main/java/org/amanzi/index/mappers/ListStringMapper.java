@@ -5,8 +5,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.amanzi.index.util.CollectionUtilities;
 import org.amanzi.index.util.IndexUtilities;
 
 
@@ -19,8 +19,9 @@ public class ListStringMapper implements Mapper<String> {
 	public static final int DEFAULT_SIZE = 37; // A-Z, 0-9, other
 	public static final int DEFAULT_OFFSET = 0;
 	
-	protected String min = "";
-	protected String max = "";
+	private final RangeTracker<String> range;
+	private final ConcurrentHashMap<String, Integer> keys = new ConcurrentHashMap<String, Integer>();
+	private volatile int generation = 0; // number of values given keys
 	protected String origin = DEFAULT_ORIGIN;
 	protected char[] originChars;
 	
@@ -96,13 +97,14 @@ public class ListStringMapper implements Mapper<String> {
 		
 		if (sample != null) {
 			Object[] str = sample.toArray();
-			min = (String) str[0];
-			max = (String) str[str.length - 1];
+			range = new RangeTracker<String>((String) str[0], (String) str[str.length - 1]);
 			
 			for (String string : sample) {
 				string = string.trim();
 				this.toKey(string);
 			}
+		} else {
+			range = new RangeTracker<String>("", "");
 		}
 	}
 	
@@ -121,7 +123,17 @@ public class ListStringMapper implements Mapper<String> {
 		this.offset = offset;
 		this.root = root;
 		this.width = width;
-		
+		this.range = new RangeTracker<String>("", "");
+		for (Entry<Integer, String> entry : keyList.entrySet()) {
+			keys.put(entry.getValue(), entry.getKey());
+		}
+		if (extraKeyList != null) {
+			for (Entry<Integer, ArrayList<String>> entry : extraKeyList.entrySet()) {
+				for (String value : entry.getValue()) {
+					keys.put(value, entry.getKey());
+				}
+			}
+		}
 	}
 
 	private char limitChar(char c) {
@@ -142,7 +154,7 @@ public class ListStringMapper implements Mapper<String> {
 	 * Currently we describe nothing, since we have only resolved the
 	 * string->key mapping, not the reverse for this class.
 	 */
-	public String getRangeText(int key) {
+	public synchronized String getRangeText(int key) {
 		// If the last key entry
 		if (key % gap == (gap - 1)) {
 			StringBuffer sb = new StringBuffer();
@@ -161,11 +173,11 @@ public class ListStringMapper implements Mapper<String> {
 	}
 
 	public String getMin() {
-		return min;
+		return range.getMin();
 	}
 
 	public String getMax() {
-		return max;
+		return range.getMax();
 	}
 
 	public int getGap() {
@@ -176,11 +188,26 @@ public class ListStringMapper implements Mapper<String> {
 		return offset;
 	}
 	
+	/**
+	 * Map the value to its key, giving new values the next free key. Values
+	 * that already have keys are looked up without locking, and only new
+	 * values lock the mapper to be given a key.
+	 */
 	public int toKey(Object obj) {
 		String value = limitString((String) obj);
-		min = value.compareTo(min) < 0 ? value : min;
-		max = value.compareTo(max) > 0 ? value : max;
-		return (int) calcKey(value);
+		range.add(value);
+		Integer key = keys.get(value);
+		return key != null ? key : assignKey(value);
+	}
+
+	/**
+	 * Find the key of the value, without giving it one or recording the value.
+	 * A new value would be given the next free key, but so might any other
+	 * new value arriving first, so values without keys return NO_KEY.
+	 */
+	public int keyFor(Object obj) {
+		Integer key = keys.get(limitString((String) obj));
+		return key != null ? key : NO_KEY;
 	}
 
 	/** Return the text without any changes */
@@ -194,13 +221,70 @@ public class ListStringMapper implements Mapper<String> {
 	}
 
 	/**
-	 * 
-	 * @param value
-	 * @return
+	 * Values with the same first character are given keys in the order they
+	 * arrive, not in string order, so a range of strings is not a range of
+	 * keys.
+	 */
+	public boolean isOrderPreserving() {
+		return false;
+	}
+
+	/**
+	 * Give the new value the next key for its first character, or the last key
+	 * for that character, shared by all further values, once they are all
+	 * used. Another thread could have given the value a key while this one
+	 * waited for the lock.
 	 */
-	private int calcKey(String value) {
-		// value is the 'key' and key is the 'value' for the HashMap
-		int key = 0;
+	private synchronized int assignKey(String value) {
+		Integer known = keys.get(value);
+		if (known != null) {
+			return known;
+		}
+		int pos = positionOf(value);
+		int key = nextKey(pos);
+		if (counter[pos] < this.gap) {
+			keyList.put(key, value);
+			counter[pos] ++;
+		} else {
+			// Only initialize when needed
+			if (extraKeyList == null) {
+				extraKeyList = new HashMap<Integer, ArrayList<String>>();
+			}
+			ArrayList<String> extraValues = extraKeyList.get(key);
+			if (extraValues == null) {
+				extraValues = new ArrayList<String>();
+				extraKeyList.put(key, extraValues);
+			}
+			extraValues.add(value);
+		}
+		keys.put(value, key);
+		generation++;
+		return key;
+	}
+
+	/**
+	 * @return a number that changes every time a value is given a key, so
+	 *         that query plans built from the keys of query values can be
+	 *         recognised as out of date
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/** @return the next key to give to a value at the counter position */
+	private synchronized int nextKey(int pos) {
+		if (counter[pos] < this.gap) {
+			return pos * gap + counter[pos] + this.offset;
+		} else {
+			return pos * this.gap + this.gap - 1 + this.offset;
+		}
+	}
+
+	/**
+	 * @return the position of the counter for the first character of the
+	 *         value, which is case insensitive for letters
+	 */
+	private int positionOf(String value) {
 		int pos = limitChar(value.charAt(0)) - '0';
 		if (pos > 0 && pos < 9) {
 			
@@ -211,34 +295,7 @@ public class ListStringMapper implements Mapper<String> {
 		} else {
 			pos = counterSize - 1;
 		}
-		if (!keyList.containsValue(value)) {
-			if (counter[pos] < this.gap) {
-				key = pos * gap + counter[pos] + this.offset;
-				keyList.put(key, value);
-				counter[pos] ++;
-			} else {
-				key = pos * this.gap + this.gap - 1 + this.offset;
-				// Only initialize when needed
-				if (extraKeyList == null) {
-					extraKeyList = new HashMap<Integer, ArrayList<String>>();
-				}
-				ArrayList<String> extraValues;
-				if (extraKeyList.containsKey(key)) {
-					extraValues = extraKeyList.get(key);
-					if (!extraValues.contains(value)) {
-						extraValues.add(value);
-					}
-				} else {
-					extraValues= new ArrayList<String>();
-					extraValues.add(value);
-				}
-				extraKeyList.put(key, extraValues);
-			}
-		} else {
-			// Get the key from the value (one-to-one mapping ensured)
-			key = CollectionUtilities.getKeyFromValue(keyList.entrySet(), value);
-		}
-		return key;
+		return pos;
 	}
 
 	/**
@@ -248,16 +305,16 @@ public class ListStringMapper implements Mapper<String> {
 		return (int) counterSize * gap;
 	}
 	
-	public String getKeyListString() {
+	public synchronized String getKeyListString() {
 		return keyList.toString();
 	}
 	
-	public String getExtraKeyListString() {
+	public synchronized String getExtraKeyListString() {
 		return (extraKeyList != null) ? 
 				extraKeyList.toString() : "";
 	}
 	
-	public String getCounterString() {
+	public synchronized String getCounterString() {
 		return IndexUtilities.arrayString(counter);
 	}
 
@@ -53,10 +53,8 @@ public class LongMapper extends NumberMapper<Long> {
 		return new LongMapper(min, max, (max - min) / categories);
 	}
 
-	public int toKey(Object obj) {
+	public int keyFor(Object obj) {
 		Long value = (Long) obj;
-		min = Math.min(value, min);
-		max = Math.max(value, max);
 		int offset = value < origin ? -1 : 0;
 		return (int) ((value - origin - offset) / step + offset);
 	}
@@ -71,11 +69,11 @@ public class LongMapper extends NumberMapper<Long> {
 	}
 
 	public int getCategories() {
-		return (int) ((max - min) / step);
+		return (int) ((getMax() - getMin()) / step);
 	}
 	
 	public String toString() {
-		return "LongMapper: min[" + min + "] origin[" + origin + "] max["
+		return "LongMapper: min[" + getMin() + "] origin[" + origin + "] max["
 				+ origin + "] step[" + step + "] categories[" + getCategories()
 				+ "]";
 	}
@@ -2,9 +2,29 @@ package org.amanzi.index.mappers;
 
 public interface Mapper<T extends Object> {
 
-	/** Main active method for mapping, convert the mapped type into a index key */
+	/**
+	 * The key returned by keyFor(Object) for a value that has no index key
+	 * yet, in mappers that give keys to values as they arrive. No indexed data
+	 * has this key, but data with the value could be indexed later, so it
+	 * must not be used to limit a search.
+	 */
+	public static final int NO_KEY = Integer.MIN_VALUE;
+
+	/**
+	 * Main active method for mapping, convert the mapped type into a index key,
+	 * and extend the known minimum and maximum to include the value. This is
+	 * used when indexing data, and is safe to call from several threads.
+	 */
 	public int toKey(Object object);
 
+	/**
+	 * Convert the mapped type into an index key, without recording the value
+	 * in the known minimum and maximum. This is used for query values, which
+	 * are not data. Mappers that give keys to values as they arrive return
+	 * NO_KEY for values that have not been given one.
+	 */
+	public int keyFor(Object object);
+
 	/** Get the current known minimum of mapped data */
 	public T getMin();
 
@@ -26,4 +46,11 @@ public interface Mapper<T extends Object> {
 	/** Compare two objects of the specified type */
 	public int compare(Object value, Object val);
 
+	/**
+	 * @return true if the keys keep the order of the values given by
+	 *         compare(Object, Object), so that a range of values maps to a
+	 *         range of keys, or false if the keys only identify values
+	 */
+	public boolean isOrderPreserving();
+
 }
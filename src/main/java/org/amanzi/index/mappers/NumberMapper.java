@@ -1,29 +1,40 @@
 package org.amanzi.index.mappers;
 
-public abstract class NumberMapper<T> implements Mapper<T> {
-	protected T min;
-	protected T max;
-	protected T origin;
-	protected T step;
+/**
+ * The base class of the numerical mappers, which map values to keys by their
+ * distance from a fixed origin in steps of a fixed size. The keys are
+ * calculated by keyFor(Object) from the origin and step alone, while the range
+ * of the values mapped by toKey(Object) is kept by a lock-free RangeTracker,
+ * so a mapper can be shared by several indexing and querying threads.
+ */
+public abstract class NumberMapper<T extends Comparable<? super T>> implements Mapper<T> {
+	private final RangeTracker<T> range;
+	protected final T origin;
+	protected final T step;
 
 	protected NumberMapper(T min, T max, T step) {
-		this.min = min;
-		this.max = max;
+		this.range = new RangeTracker<T>(min, max);
 		this.step = step;
 		this.origin = average(max, min);
 	}
 
+	@SuppressWarnings("unchecked")
+	public int toKey(Object obj) {
+		range.add((T) obj);
+		return keyFor(obj);
+	}
+
 	public String getRangeText(int key) {
 		return "key[" + key + "] range[" + getMin(key) + "," + getMax(key)
 				+ "]";
 	}
 
 	public T getMin() {
-		return min;
+		return range.getMin();
 	}
 
 	public T getMax() {
-		return max;
+		return range.getMax();
 	}
 
 	public T getOrigin() {
@@ -34,6 +45,11 @@ public abstract class NumberMapper<T> implements Mapper<T> {
 		return step;
 	}
 
+	/** Numbers are mapped to keys by their distance from the origin */
+	public boolean isOrderPreserving() {
+		return true;
+	}
+
 	protected abstract T average(T a, T b);
 	
 	/** Get the minimum value for the specific index */
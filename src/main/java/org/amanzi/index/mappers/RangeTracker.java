@@ -0,0 +1,45 @@
+package org.amanzi.index.mappers;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class keeps track of the minimum and maximum of the values mapped by a
+ * mapper, and can be shared by any number of threads without locking. Each
+ * bound is held in an AtomicReference and only replaced, by compare-and-set,
+ * when a value lies outside it. Since almost all values lie within the range
+ * already seen, the common case is just two reads, with no writes and so no
+ * contention between the threads.
+ */
+public class RangeTracker<T extends Comparable<? super T>> {
+	private final AtomicReference<T> min;
+	private final AtomicReference<T> max;
+
+	public RangeTracker(T min, T max) {
+		this.min = new AtomicReference<T>(min);
+		this.max = new AtomicReference<T>(max);
+	}
+
+	/** Extend the range to include the value */
+	public void add(T value) {
+		T current = min.get();
+		while (value.compareTo(current) < 0 && !min.compareAndSet(current, value)) {
+			current = min.get();
+		}
+		current = max.get();
+		while (value.compareTo(current) > 0 && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public T getMin() {
+		return min.get();
+	}
+
+	public T getMax() {
+		return max.get();
+	}
+
+	public String toString() {
+		return "RangeTracker[" + min.get() + "," + max.get() + "]";
+	}
+}
@@ -29,7 +29,7 @@ public class FileUtilities {
 	
 	public static String getDelimiter(String str) {
 		// Take the sample of the string instead the whole string for better performance
-		str = str.substring(0,DELIMITER_SAMPLE_SIZE);
+		str = str.substring(0, Math.min(str.length(), DELIMITER_SAMPLE_SIZE));
 		// Regex
 		if (Pattern.compile("[^,.]+,[^,.]+").matcher(str).find()) {
 			return ",";
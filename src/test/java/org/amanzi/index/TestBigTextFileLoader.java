@@ -1,11 +1,27 @@
 package org.amanzi.index;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import junit.framework.TestCase;
 
 import org.amanzi.index.loader.BigTextFileLoader;
+import org.amanzi.index.loader.MappedTextFileLoader;
+import org.amanzi.index.loader.ParallelArchiveLoader;
 import org.amanzi.index.util.FileUtilities;
 import org.junit.Test;
 
@@ -93,4 +109,195 @@ public class TestBigTextFileLoader extends TestCase {
 			file.close();
 		}		
 	}
+
+	@Test
+	public void testMappedFileLoader() throws IOException {
+		ArrayList<String> expected = new ArrayList<String>();
+		BigTextFileLoader file = new BigTextFileLoader();
+		try {
+			file.open("test.txt");
+			for (String line : file) {
+				expected.add(line);
+			}
+		} finally {
+			file.close();
+		}
+		MappedTextFileLoader mapped = new MappedTextFileLoader();
+		try {
+			mapped.open("test.txt");
+			// Use a small window to test lines crossing the window boundaries
+			mapped.setWindowSize(1024);
+			mapped.setDelimiter(",");
+			int lineCount = 0;
+			MappedTextFileLoader.Fields previous = null;
+			for (MappedTextFileLoader.Line line : mapped) {
+				if (previous != null) {
+					// Copied lines are still valid after the next line is read
+					String[] fields = expected.get(lineCount - 1).split(",", -1);
+					assertEquals("Unexpected copied field count in line " + (lineCount - 1), fields.length, previous
+							.getFieldCount());
+					for (int i = 0; i < fields.length; i++) {
+						assertEquals("Unexpected copied field " + i + " in line " + (lineCount - 1), fields[i], previous
+								.getString(i));
+					}
+				}
+				previous = line.copy();
+				String text = expected.get(lineCount);
+				assertEquals("Unexpected line " + lineCount, text, line.toString());
+				String[] fields = text.split(",", -1);
+				assertEquals("Unexpected field count in line " + lineCount, fields.length, line.getFieldCount());
+				for (int i = 0; i < fields.length; i++) {
+					assertEquals("Unexpected field " + i + " in line " + lineCount, fields[i], line.getString(i));
+					assertEquals("Unexpected field length " + i + " in line " + lineCount, fields[i].length(), line.getBytes(i)
+							.remaining());
+				}
+				lineCount++;
+			}
+			assertEquals("Expected the same lines as the buffered reader", expected.size(), lineCount);
+			System.out.println("Mapped file=>" + mapped.getFileName() + "@" + mapped.getFileSize() / 1024 + "KB: " + lineCount
+					+ " lines read.");
+		} finally {
+			mapped.close();
+		}
+	}
+
+	@Test
+	public void testSplitFileLoader() throws Exception {
+		ArrayList<String> expected = new ArrayList<String>();
+		BigTextFileLoader file = new BigTextFileLoader();
+		try {
+			file.open("test.txt");
+			for (String line : file) {
+				expected.add(line);
+			}
+		} finally {
+			file.close();
+		}
+		List<BigTextFileLoader.FileChunk> chunks = BigTextFileLoader.split("test.txt", 7);
+		assertEquals("Expected the requested number of chunks", 7, chunks.size());
+		// Read all chunks concurrently
+		ExecutorService executor = Executors.newFixedThreadPool(chunks.size());
+		ArrayList<Future<ArrayList<String>>> results = new ArrayList<Future<ArrayList<String>>>();
+		for (final BigTextFileLoader.FileChunk chunk : chunks) {
+			assertEquals("Expected all chunks to share the header", expected.get(0), chunk.getHeader());
+			results.add(executor.submit(new Callable<ArrayList<String>>() {
+				public ArrayList<String> call() throws Exception {
+					ArrayList<String> lines = new ArrayList<String>();
+					chunk.open();
+					try {
+						for (String line : chunk) {
+							lines.add(line);
+						}
+					} finally {
+						chunk.close();
+					}
+					return lines;
+				}
+			}));
+		}
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add(chunks.get(0).getHeader());
+		for (Future<ArrayList<String>> result : results) {
+			lines.addAll(result.get());
+		}
+		executor.shutdown();
+		assertEquals("Expected the chunks to contain all lines", expected, lines);
+	}
+
+	/**
+	 * Write the data lines of test.txt into a zip file with several entries,
+	 * each starting with the header line, and into a gzip file with several
+	 * concatenated members.
+	 */
+	private ArrayList<String> writeArchives(int parts) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		BigTextFileLoader file = new BigTextFileLoader();
+		try {
+			file.open("test.txt");
+			for (String line : file) {
+				lines.add(line);
+			}
+		} finally {
+			file.close();
+		}
+		new File("target").mkdirs();
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream("target/test-parts.zip"));
+		FileOutputStream gzip = new FileOutputStream("target/test-parts.txt.gz");
+		try {
+			int partSize = (lines.size() - 1 + parts - 1) / parts;
+			for (int part = 0; part < parts; part++) {
+				StringBuffer data = new StringBuffer();
+				for (int i = 1 + part * partSize; i < Math.min(lines.size(), 1 + (part + 1) * partSize); i++) {
+					data.append(lines.get(i)).append("\n");
+				}
+				zip.putNextEntry(new ZipEntry("part" + part + ".txt"));
+				zip.write((lines.get(0) + "\n" + data).getBytes());
+				zip.closeEntry();
+				// Each member is a complete gzip stream, and only the first
+				// has the header
+				GZIPOutputStream member = new GZIPOutputStream(new NonClosingOutputStream(gzip));
+				member.write(((part == 0 ? lines.get(0) + "\n" : "") + data).getBytes());
+				member.finish();
+			}
+		} finally {
+			zip.close();
+			gzip.close();
+		}
+		return lines;
+	}
+
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		private NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	@Test
+	public void testMultiEntryArchives() throws Exception {
+		ArrayList<String> expected = writeArchives(5);
+		for (String path : new String[] { "target/test-parts.zip", "target/test-parts.txt.gz" }) {
+			ArrayList<String> lines = new ArrayList<String>();
+			BigTextFileLoader file = new BigTextFileLoader();
+			try {
+				file.open(path);
+				for (String line : file) {
+					lines.add(line);
+				}
+			} finally {
+				file.close();
+			}
+			assertEquals("Expected all lines of all entries in " + path + ", with one header", expected, lines);
+
+			ParallelArchiveLoader archive = new ParallelArchiveLoader();
+			try {
+				archive.open(path);
+				archive.setThreads(3);
+				archive.setBatchSize(17);
+				archive.setQueueSize(2);
+				assertEquals("Unexpected header in " + path, expected.get(0), archive.getHeader());
+				HashMap<String, ArrayList<String>> entryLines = new HashMap<String, ArrayList<String>>();
+				for (String line : archive) {
+					String entry = archive.getCurrentEntry().getName();
+					if (!entryLines.containsKey(entry)) {
+						entryLines.put(entry, new ArrayList<String>());
+					}
+					entryLines.get(entry).add(line);
+				}
+				assertEquals("Unexpected entries in " + path, archive.getEntries().size(), entryLines.size());
+				lines.clear();
+				lines.add(archive.getHeader());
+				for (ParallelArchiveLoader.Entry entry : archive.getEntries()) {
+					lines.addAll(entryLines.get(entry.getName()));
+				}
+				assertEquals("Expected all data lines of all entries in " + path, expected, lines);
+				System.out.println("Archive " + path + " entries: " + archive.getEntries());
+			} finally {
+				archive.close();
+			}
+		}
+	}
 }
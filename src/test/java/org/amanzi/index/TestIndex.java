@@ -2,11 +2,20 @@ package org.amanzi.index;
 
 import static org.amanzi.index.util.IndexUtilities.arrayString;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Random;
 
+import org.amanzi.index.AmanziIndex.QueryCondition;
+import org.amanzi.index.aggregators.Aggregate;
+import org.amanzi.index.aggregators.IndexStatistics;
+import org.amanzi.index.codecs.PackedLongKeyCodec;
 import org.amanzi.index.config.DefaultIndexConfig;
 import org.amanzi.index.config.DefaultPropertyConfig;
 import org.amanzi.index.config.IndexConfig;
@@ -18,6 +27,7 @@ import org.amanzi.index.mappers.Mapper;
 import org.junit.Test;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.index.IndexHits;
 
@@ -112,6 +122,227 @@ public class TestIndex extends Neo4jTestCase {
 	public void testInsertSimple1D_100() throws Exception {
 		String name = doInsertSimple1D(0, 100, 5);
 		doSearchIndex(name, "simple >= 5 and simple < 20 or simple == 45", "simple", new Integer[] { 5, 10, 15, 45 });
+		// 100 lies outside the range of the first level 2 index node, but
+		// inside the range of its level 1 index node
+		doSearchIndex(name, "simple == 100", "simple", new Integer[] { 100 });
+		doSearchIndex(name, "simple < 100 and simple > 80", "simple", new Integer[] { 85, 90, 95 });
+		doSearchIndex(name, "simple BETWEEN 10 AND 30 and not simple IN (15, 25)", "simple", new Integer[] { 10, 20, 30 });
+		doSearchIndex(name, "(simple BETWEEN 0 AND 20 or simple == 45) and simple != 5", "simple", new Integer[] { 0, 10, 15,
+				20, 45 });
+		doSearchIndex(name, "simple NOT BETWEEN 10 AND 90 AND (simple > 0)", "simple", new Integer[] { 5, 95, 100 });
+		doSearchIndex(name, "(simple < 20 or simple > 80) and simple != 5", "simple", new Integer[] { 0, 10, 15, 85, 90, 95,
+				100 });
+		doSearchIndex(name, "simple < 10 or simple == 45 or not simple < 90", "simple", new Integer[] { 0, 5, 45, 90, 95, 100 });
+		AmanziIndex index = new AmanziIndex(name, graphDb());
+		assertEquals("Expected to get the node with the value", 45, index.get("simple", 45).getSingle().getProperty("simple"));
+		assertEquals("Expected to get the node by a parsed value", 1, index.get("simple", "100").size());
+		assertEquals("Expected no node for a missing value", 0, index.get("simple", 46).size());
+		assertEquals("Expected no node for a value outside the index", 0, index.get("simple", 1000).size());
+	}
+
+	@Test
+	public void testDelete() throws Exception {
+		String name = doInsertSimple1D(0, 100, 1);
+		AmanziIndex index = new AmanziIndex(name, graphDb());
+		Node data = index.get("simple", 45).getSingle();
+		assertTrue("Expected the index to be deleted in several batches", index.delete(7, System.out) > 7 * 10);
+		assertFalse("Expected the data node to be unlinked", data.hasRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF));
+		int dataNodes = 0;
+		for (Node node : graphDb().getAllNodes()) {
+			if (node.hasProperty("simple")) {
+				dataNodes++;
+			} else {
+				assertTrue("Expected only the data and reference nodes to remain, but found " + node, node.equals(graphDb()
+						.getReferenceNode())
+						|| "indexes".equals(node.getProperty("type", null)));
+			}
+		}
+		assertEquals("Expected the data nodes to remain", 101, dataNodes);
+		try {
+			new AmanziIndex(name, graphDb());
+			fail("Expected the index to be gone");
+		} catch (RuntimeException e) {
+			System.out.println("Got expected exception: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testParallelQuery() throws Exception {
+		String name = doInsertSimple1D(0, 100, 1);
+		AmanziIndex index = new AmanziIndex(name, graphDb());
+		String[] queries = new String[] { "simple >= 0", "simple < 10 or simple > 90", "simple BETWEEN 33 AND 45",
+				"simple > 200" };
+		for (String query : queries) {
+			ArrayList<Node> sequential = new ArrayList<Node>();
+			for (Node node : index.query(query)) {
+				sequential.add(node);
+			}
+			QueryOptions options = new QueryOptions();
+			options.setParallelism(4);
+			options.setQueueSize(2);
+			ArrayList<Node> ordered = new ArrayList<Node>();
+			for (Node node : index.query(options, query)) {
+				ordered.add(node);
+			}
+			assertEquals("Expected ordered parallel results in sequential order for query[" + query + "]", sequential, ordered);
+			options.setOrdered(false);
+			HashSet<Node> unordered = new HashSet<Node>();
+			for (Node node : index.query(options, query)) {
+				assertTrue("Unexpected duplicate result for query[" + query + "]", unordered.add(node));
+			}
+			assertEquals("Expected the same parallel results for query[" + query + "]", new HashSet<Node>(sequential), unordered);
+		}
+		// Closing the results early stops the threads
+		QueryOptions options = new QueryOptions();
+		options.setParallelism(4);
+		options.setQueueSize(1);
+		IndexHits<Node> hits = index.query(options, "simple >= 0");
+		assertNotNull("Expected a result", hits.next());
+		hits.close();
+		// Abandoning the results without closing them stops the threads after
+		// the idle timeout
+		options.setIdleTimeout(200);
+		hits = index.query(options, "simple >= 0");
+		for (Node node : hits) {
+			assertNotNull("Expected a result", node);
+			break;
+		}
+		long start = System.currentTimeMillis();
+		while (countThreads("AmanziIndex query") > 0 && System.currentTimeMillis() - start < 10000) {
+			Thread.sleep(50);
+		}
+		assertEquals("Expected the threads of abandoned results to end", 0, countThreads("AmanziIndex query"));
+		try {
+			while (hits.hasNext()) {
+				hits.next();
+			}
+			fail("Expected an exception for results taken after the idle timeout");
+		} catch (RuntimeException e) {
+			assertTrue("Expected the idle timeout to be reported", e.getMessage().contains("no results were taken"));
+		}
+	}
+
+	private static int countThreads(String name) {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (name.equals(thread.getName()) && thread.isAlive()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testOrderedQuery() throws Exception {
+		String indexName = "Test Index 2D Ordered";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("x", 0, 99, 20));
+		properties.add(DefaultPropertyConfig.makeFloatConfig("t", 0, 1000, 20));
+		Random random = new Random(0);
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(4, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			for (int i = 0; i < 500; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("x", random.nextInt(100));
+				if (i % 11 > 0) {
+					// Leave some nodes without the order property
+					node.setProperty("t", random.nextFloat() * 1000);
+				}
+				index.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		AmanziIndex index = new AmanziIndex(indexName, graphDb());
+		QueryOptions options = new QueryOptions();
+		options.setOrderBy("t");
+		ArrayList<Node> ordered = new ArrayList<Node>();
+		Float previous = null;
+		for (Node node : index.query(options, "x < 50")) {
+			Float t = (Float) node.getProperty("t", null);
+			assertTrue("Expected nodes without the property first", previous == null || t != null);
+			assertTrue("Expected results in order of t, but " + t + " came after " + previous, previous == null
+					|| t.compareTo(previous) >= 0);
+			previous = t;
+			ordered.add(node);
+		}
+		assertEquals("Expected all results when ordered", index.query("x < 50").size(), ordered.size());
+
+		// The top results, with an offset
+		options.setOffset(5);
+		options.setLimit(10);
+		IndexHits<Node> hits = index.query(options, "x < 50");
+		assertEquals("Expected size to reflect the limit", 10, hits.size());
+		ArrayList<Node> top = new ArrayList<Node>();
+		for (Node node : hits) {
+			top.add(node);
+		}
+		assertEquals("Expected the limited results to be a part of the ordered results", ordered.subList(5, 15), top);
+
+		// Descending order is the reverse, apart from equal values
+		options = new QueryOptions();
+		options.setOrderBy("t", true);
+		ArrayList<Node> descending = new ArrayList<Node>();
+		previous = null;
+		for (Node node : index.query(options, "x < 50")) {
+			Float t = (Float) node.getProperty("t", null);
+			assertTrue("Expected nodes without the property last", t == null || descending.isEmpty()
+					|| descending.get(descending.size() - 1).hasProperty("t"));
+			assertTrue("Expected results in descending order of t, but " + t + " came after " + previous, previous == null
+					|| t == null || t.compareTo(previous) <= 0);
+			previous = t == null ? previous : t;
+			descending.add(node);
+		}
+		assertEquals("Expected all results when in descending order", ordered.size(), descending.size());
+		assertEquals("Expected the highest value first", ordered.get(ordered.size() - 1).getProperty("t"), descending.get(0)
+				.getProperty("t"));
+		options.setLimit(1);
+		assertEquals("Expected the highest value for the top result", ordered.get(ordered.size() - 1).getProperty("t"), index
+				.query(options, "x < 50").getSingle().getProperty("t"));
+
+		// Limits without ordering
+		QueryOptions limited = new QueryOptions();
+		limited.setLimit(7);
+		assertEquals("Expected size to reflect the limit", 7, index.query(limited, "x < 50").size());
+		int count = 0;
+		for (@SuppressWarnings("unused")
+		Node node : index.query(limited, "x < 50")) {
+			count++;
+		}
+		assertEquals("Expected limited results", 7, count);
+		limited.setParallelism(3);
+		count = 0;
+		for (@SuppressWarnings("unused")
+		Node node : index.query(limited, "x < 50")) {
+			count++;
+		}
+		assertEquals("Expected limited parallel results", 7, count);
+	}
+
+	@Test
+	public void testInsideNotEvaluated() throws Exception {
+		String name = doInsertSimple1D(0, 100, 1);
+		AmanziIndex index = new AmanziIndex(name, graphDb());
+		final int[] evaluated = new int[1];
+		QueryCondition query = new AmanziIndex.GreaterThanOrEqualsCondition("simple", 5, index.getConfig().getProperty("simple")) {
+			public boolean evaluate(Node node) {
+				evaluated[0]++;
+				return super.evaluate(node);
+			}
+		};
+		int count = 0;
+		for (@SuppressWarnings("unused")
+		Node node : index.query(query)) {
+			count++;
+		}
+		assertEquals("Unexpected results", 96, count);
+		System.out.println("Evaluated " + evaluated[0] + " data nodes for " + count + " results");
+		assertTrue("Expected data below index nodes inside the range to be accepted without evaluating it",
+				evaluated[0] < count / 2);
 	}
 
 	private String doInsertSimple1D(int min, int max, int step) throws Exception {
@@ -125,10 +356,12 @@ public class TestIndex extends Neo4jTestCase {
 			IndexConfig config = new DefaultIndexConfig(10, properties);
 			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
 			System.out.println("Creating simple set of ordered integers:");
+			ArrayList<Node> nodes = new ArrayList<Node>();
 			for (int i = min; i <= max; i += step) {
 				Node node = this.graphDb().createNode();
 				node.setProperty("simple", i);
 				index.add(node);
+				nodes.add(node);
 				int[] keys = (int[]) node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING)
 						.getStartNode().getProperty("index");
 				String keyString = arrayString(keys);
@@ -137,6 +370,9 @@ public class TestIndex extends Neo4jTestCase {
 						+ "]", keyString);
 			}
 			index.finishUp();
+			for (Node node : nodes) {
+				assertIndexPath(config, node);
+			}
 			tx.success();
 		} finally {
 			tx.finish();
@@ -147,12 +383,31 @@ public class TestIndex extends Neo4jTestCase {
 		return indexName;
 	}
 
+	/**
+	 * Check that every index node above the data node has the keys of the data
+	 * node at its own level, since the searches rely on this to skip subtrees.
+	 */
+	private void assertIndexPath(IndexConfig config, Node node) {
+		Node indexNode = node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING).getStartNode();
+		int[] keys = config.getKeyCodec().decode(indexNode.getProperty("index"));
+		for (int level = 0; indexNode != null; level++) {
+			assertEquals("Unexpected level of index node above " + node.getProperty("simple"), level, indexNode.getProperty("level"));
+			assertEquals("Unexpected keys at level " + level + " above " + node.getProperty("simple"),
+					arrayString(config.keysFor(keys, level)), arrayString(config.getKeyCodec().decode(indexNode.getProperty("index"))));
+			Relationship parent = indexNode.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING);
+			indexNode = parent == null ? null : parent.getStartNode();
+		}
+	}
+
 	private void doSearchIndex(String name, String query, String propertyToAssert, Object[] expectedResults) {
 		ArrayList<Object> results = new ArrayList<Object>();
 		AmanziIndex index = new AmanziIndex(name, graphDb());
 		IndexHits<Node> hits = index.query(query);
-		System.out.println("Got " + hits.size() + " results querying '" + name + "': " + query);
+		int size = hits.size();
+		System.out.println("Got " + size + " results querying '" + name + "': " + query);
+		int count = 0;
 		for (Node node : hits) {
+			count++;
 			if (propertyToAssert != null)
 				System.out.println("\t" + node + "\t" + node.getProperty(propertyToAssert, null));
 			else
@@ -163,6 +418,7 @@ public class TestIndex extends Neo4jTestCase {
 				results.add(result);
 			}
 		}
+		assertEquals("Counted size does not match the results for query[" + query + "]", count, size);
 		if (expectedResults.length > 0) {
 			assertEquals("Incorrect result length for query[" + query + "]", expectedResults.length, results.size());
 			for (Object expected : expectedResults) {
@@ -201,6 +457,80 @@ public class TestIndex extends Neo4jTestCase {
 		doSearchIndex(name, "simple == AA or simple > CA and simple <= GA", "simple", new String[] {"AA", "FM", "FF"});
 	}
 
+	@Test
+	public void testListStringQueryBeforeValueIndexed() throws Exception {
+		String indexName = "Test Index 1D List String";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeListStringConfig("name", Arrays.asList("AA", "AB")));
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(4, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			for (String value : new String[] { "AA", "AB", "BA" }) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("name", value);
+				index.add(node);
+			}
+			index.finishUp();
+			assertEquals("Expected no node for a value not yet indexed", 0, index.query("name == AX").size());
+			assertEquals("Expected no node for a value not yet indexed", 0, index.get("name", "AX").size());
+			// The value AX does not get the key that was next when it was
+			// first queried, and the query must still find it
+			for (String value : new String[] { "AY", "AX" }) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("name", value);
+				index.add(node);
+			}
+			index.finishUp();
+			assertEquals("Expected the node indexed after the query", 1, index.query("name == AX").size());
+			assertEquals("Expected the node indexed after the query", "AX", index.query("name == AX").getSingle()
+					.getProperty("name"));
+			assertEquals("Expected the node indexed after the query", 1, index.get("name", "AX").size());
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	@Test
+	public void testListStringRange() throws Exception {
+		String indexName = "Test Index 1D List String Range";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeListStringConfig("name", Arrays.asList("AZ")));
+		Transaction tx = graphDb().beginTx();
+		try {
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), new DefaultIndexConfig(4, properties));
+			// The values are given keys in the order they arrive, not in
+			// string order
+			for (String value : new String[] { "AZ", "AA", "AM", "B" }) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("name", value);
+				index.add(node);
+			}
+			index.finishUp();
+			assertEquals("Unexpected count for a range of list strings", 1, index.query("name < AM").size());
+			assertEquals("Unexpected result for a range of list strings", "AA", index.query("name < AM").getSingle()
+					.getProperty("name"));
+			assertEquals("Unexpected count for a range of list strings", 2, index.query("name >= AM and name < B").size());
+			assertEquals("Unexpected count for a range of list strings", 2, index.query("name BETWEEN AB AND AZ").size());
+			assertEquals("Unexpected count for values and a range", 3, index.query("name IN (AA, AZ) or name > AZ").size());
+			// The order of the keys is not the order of the values
+			for (boolean descending : new boolean[] { false, true }) {
+				QueryOptions options = new QueryOptions();
+				options.setOrderBy("name", descending);
+				try {
+					index.query(options, "name < B");
+					fail("Expected ordering by a list string property to be rejected");
+				} catch (RuntimeException e) {
+					assertTrue("Expected the order of the keys to be reported", e.getMessage().contains("not in the order"));
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
 	private String doInsertSimple1DString(String min, String max, int step, int depth) throws Exception {
 		String indexName = "Test Index 1D String[" + min + "," + max + "," + step + "," + depth + "]";
 		int minc = min.charAt(0);
@@ -245,6 +575,876 @@ public class TestIndex extends Neo4jTestCase {
 		return indexName;
 	}
 
+	@Test
+	public void testInsertBulk1D() throws Exception {
+		String indexName = "Test Index 1D Bulk Integer";
+		int min = 0;
+		int max = 1000;
+		int average = (max + min) / 2;
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("simple", min, max, 1000));
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(10, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			index.setBatchSize(100);
+			ArrayList<Node> nodes = new ArrayList<Node>();
+			for (int i = min; i <= max; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("simple", i);
+				nodes.add(node);
+			}
+			Collections.shuffle(nodes, new Random(0));
+			index.addAll(nodes);
+			index.finishUp();
+			System.out.println("Bulk indexed " + index.getFlushedCount() + " nodes at " + index.getFlushRate() + " nodes/second");
+			assertEquals("Expected all nodes to be flushed", nodes.size(), index.getFlushedCount());
+			for (Node node : nodes) {
+				int[] keys = (int[]) node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING)
+						.getStartNode().getProperty("index");
+				assertEquals("Expected index key to be the value minus the average value", "["
+						+ ((Integer) node.getProperty("simple") - average) + "]", arrayString(keys));
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		doSearchIndex(indexName, "simple >= 5 and simple < 10 or simple == 945", "simple", new Integer[] { 5, 6, 7, 8, 9, 945 });
+	}
+
+	@Test
+	public void testInsertParallel2D() throws Exception {
+		String[] indexNames = new String[] { "Test Index 2D Sequential", "Test Index 2D Parallel" };
+		for (int parallelism = 1; parallelism <= 4; parallelism += 3) {
+			String indexName = indexNames[parallelism / 4];
+			final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+			properties.add(DefaultPropertyConfig.makeIntegerConfig("duration", 0, 1000, 100));
+			properties.add(DefaultPropertyConfig.makeFloatConfig("signal", -120, -40, 80));
+			AmanziIndex index;
+			ArrayList<Node> nodes = new ArrayList<Node>();
+			Transaction tx = graphDb().beginTx();
+			try {
+				index = new AmanziIndex(indexName, graphDb(), new DefaultIndexConfig(5, properties));
+				index.setBatchSize(700);
+				Random random = new Random(0);
+				for (int i = 0; i < 2000; i++) {
+					Node node = this.graphDb().createNode();
+					node.setProperty("duration", random.nextInt(1000));
+					if (i % 3 > 0) {
+						node.setProperty("signal", -120 + 80 * random.nextFloat());
+					}
+					nodes.add(node);
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			// The parallel writers commit their own transactions
+			index.addAll(nodes, parallelism);
+			tx = graphDb().beginTx();
+			try {
+				index.finishUp();
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			assertEquals("Expected all nodes to be flushed", nodes.size(), index.getFlushedCount());
+			Node root = nodes.get(0).getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING)
+					.getStartNode();
+			while (root.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING)) {
+				root = root.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING).getStartNode();
+			}
+			assertEquals("Expected all nodes to be counted", nodes.size(), assertCounts(root, true));
+			assertStatistics(root, "duration");
+			assertStatistics(root, "signal");
+		}
+		AmanziIndex sequential = new AmanziIndex(indexNames[0], graphDb());
+		AmanziIndex parallel = new AmanziIndex(indexNames[1], graphDb());
+		for (String query : new String[] { "duration < 300", "duration >= 500 and signal > -60", "signal <= -100 or duration == 7" }) {
+			assertEquals("Expected the same results for " + query, sequential.query(query).size(), parallel.query(query).size());
+			assertEquals("Expected the counted results for " + query, asCollection(sequential.query(query)).size(), asCollection(
+					parallel.query(query)).size());
+		}
+	}
+
+	@Test
+	public void testInsertParallelFailure() throws Exception {
+		String indexName = "Test Index 2D Parallel Failure";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("duration", 0, 1000, 100));
+		AmanziIndex index;
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		Transaction tx = graphDb().beginTx();
+		try {
+			index = new AmanziIndex(indexName, graphDb(), new DefaultIndexConfig(5, properties));
+			Random random = new Random(0);
+			for (int i = 0; i < 1000; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("duration", random.nextInt(1000));
+				nodes.add(node);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		// One data node fails when a writer thread reads it
+		final Node real = nodes.get(500);
+		Node failing = (Node) Proxy.newProxyInstance(Node.class.getClassLoader(), new Class<?>[] { Node.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (Thread.currentThread().getName().equals("AmanziIndex writer")) {
+							throw new IllegalStateException("Failing writer");
+						}
+						try {
+							return method.invoke(real, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+		ArrayList<Node> staged = new ArrayList<Node>(nodes);
+		staged.set(500, failing);
+		try {
+			index.addAll(staged, 4);
+			fail("Expected the failure of a writer to be thrown");
+		} catch (RuntimeException e) {
+			assertTrue("Expected the writer failure to be reported", e.getMessage().contains("Failing writer"));
+		}
+		tx = graphDb().beginTx();
+		try {
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		assertFalse("Expected the failed node not to be indexed", real.hasRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF));
+		int indexed = 0;
+		Node root = null;
+		for (Node node : nodes) {
+			if (node.hasRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF)) {
+				root = node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING).getStartNode();
+				indexed++;
+			}
+		}
+		assertTrue("Expected the other groups to be indexed", indexed > 0 && indexed < nodes.size());
+		while (root.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING)) {
+			root = root.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING).getStartNode();
+		}
+		assertEquals("Expected the shared index nodes to be recounted", indexed, assertCounts(root, true));
+		assertStatistics(root, "duration");
+		assertEquals("Expected the indexed nodes to be found", indexed, index.query("duration >= 0").size());
+	}
+
+	@Test
+	public void testInsertPacked3D() throws Exception {
+		String indexName = "Test Index 3D Packed Integer";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("a", 0, 100, 100));
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("b", 0, 10, 10));
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("c", 0, 10, 10));
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(10, properties, PackedLongKeyCodec.NAME);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			for (int i = 0; i < 100; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("a", i);
+				node.setProperty("b", i % 10);
+				if (i % 7 > 0) {
+					node.setProperty("c", i / 10);
+				}
+				index.add(node);
+				Object stored = node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING)
+						.getStartNode().getProperty("index");
+				assertTrue("Expected index keys to be packed into a long", stored instanceof Long);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		debugIndex(indexName);
+		doSearchIndex(indexName, "a >= 10 and a < 20 and b < 5", "a", new Integer[] { 10, 11, 12, 13, 14 });
+		doSearchIndex(indexName, "c == 3 and a < 35", "a", new Integer[] { 30, 31, 32, 33, 34 });
+		doSearchIndex(indexName, "c == 3 or a == 5", "a", new Integer[] { 5, 30, 31, 32, 33, 34, 36, 37, 38, 39 });
+	}
+
+	@Test
+	public void testStatistics2D() throws Exception {
+		String indexName = "Test Index 2D Statistics";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("duration", 0, 1000, 100));
+		properties.add(DefaultPropertyConfig.makeFloatConfig("signal", -120, -40, 80));
+		Node first = null;
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(5, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			Random random = new Random(0);
+			for (int i = 0; i < 500; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("duration", random.nextInt(1000));
+				if (i % 3 > 0) {
+					// Leave some nodes without the float property
+					node.setProperty("signal", -120 + 80 * random.nextFloat());
+				}
+				index.add(node);
+				if (first == null)
+					first = node;
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		Node root = first.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING).getStartNode();
+		while (root.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING)) {
+			root = root.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING).getStartNode();
+		}
+		assertEquals("Expected all nodes counted in the root", 500, root.getProperty("count"));
+		assertEquals("Expected all durations counted in the root", 500, IndexStatistics.getCount(root, "duration"));
+		assertEquals("Expected two thirds of signals counted in the root", 333, IndexStatistics.getCount(root, "signal"));
+		assertStatistics(root, "duration");
+		assertStatistics(root, "signal");
+	}
+
+	@Test
+	public void testRemove2D() throws Exception {
+		String indexName = "Test Index 2D Remove";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("duration", 0, 1000, 100));
+		properties.add(DefaultPropertyConfig.makeFloatConfig("signal", -120, -40, 80));
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(5, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			Random random = new Random(0);
+			for (int i = 0; i < 500; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("duration", random.nextInt(1000));
+				if (i % 3 > 0) {
+					node.setProperty("signal", -120 + 80 * random.nextFloat());
+				}
+				index.add(node);
+				nodes.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		AmanziIndex index = new AmanziIndex(indexName, graphDb());
+		ArrayList<Node> removed = new ArrayList<Node>();
+		Node kept = null;
+		tx = graphDb().beginTx();
+		try {
+			for (Node node : nodes) {
+				if ((Integer) node.getProperty("duration") < 300) {
+					assertTrue("Expected to remove " + node, index.remove(node));
+					assertFalse("Expected not to remove " + node + " twice", index.remove(node));
+					removed.add(node);
+				} else {
+					kept = node;
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		Node root = kept.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING).getStartNode();
+		while (root.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING)) {
+			root = root.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING).getStartNode();
+		}
+		int remaining = nodes.size() - removed.size();
+		assertEquals("Expected removed nodes not to be found", 0, index.query("duration < 300").size());
+		assertEquals("Expected all other nodes to be found", remaining, index.query("duration >= 0").size());
+		// The index can still have empty index nodes, like the first level 0
+		// index node, that were created empty while the tree was built
+		assertEquals("Expected removed nodes not to be counted", remaining, assertCounts(root, true));
+		assertStatistics(root, "duration");
+		assertStatistics(root, "signal");
+		assertEquals("Expected no node for a removed value", 0, index.get("duration", removed.get(0).getProperty("duration"))
+				.size());
+
+		// Disabled nodes are only unlinked from the index by compaction
+		int disabled = 0;
+		tx = graphDb().beginTx();
+		try {
+			for (Node node : nodes) {
+				if ((Integer) node.getProperty("duration") >= 900) {
+					node.setProperty("state", "disabled");
+					disabled++;
+				}
+			}
+			assertTrue("Expected empty index nodes to be deleted", index.compact() > 0);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		assertEquals("Expected disabled nodes not to be counted", remaining - disabled, assertCounts(root, false));
+		assertStatistics(root, "duration");
+		assertStatistics(root, "signal");
+
+		// Removed nodes can be added again below the pruned tree
+		tx = graphDb().beginTx();
+		try {
+			for (Node node : removed) {
+				index.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		index = new AmanziIndex(indexName, graphDb());
+		assertEquals("Expected added nodes to be found again", removed.size(), index.query("duration < 300").size());
+		assertEquals("Expected all enabled nodes to be found", nodes.size() - disabled, index.query("duration >= 0").size());
+		assertStatistics(root, "duration");
+	}
+
+	@Test
+	public void testRemoveUncounted() throws Exception {
+		String indexName = "Test Index Remove Uncounted";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("duration", 0, 1000, 100));
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(5, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			for (int i = 0; i < 200; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("duration", i * 5);
+				index.add(node);
+				nodes.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		// Remove the counts from the index nodes, as in indexes built by older
+		// versions, and disable the other data node of each level 0 index node
+		Node first = nodes.get(0).getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING).getStartNode();
+		Node disabled = nodes.get(1);
+		Node root = first;
+		tx = graphDb().beginTx();
+		try {
+			while (root.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING)) {
+				root = root.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING).getStartNode();
+			}
+			removeCounts(root);
+			disabled.setProperty("state", "disabled");
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		AmanziIndex index = new AmanziIndex(indexName, graphDb());
+		tx = graphDb().beginTx();
+		try {
+			for (int i = 2; i < 20; i++) {
+				assertTrue("Expected to remove " + nodes.get(i), index.remove(nodes.get(i)));
+			}
+			assertTrue("Expected to remove " + nodes.get(0), index.remove(nodes.get(0)));
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		assertTrue("Expected the index node of the disabled node to be kept",
+				disabled.hasRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING));
+		assertEquals("Expected all other nodes to be found", nodes.size() - 20, index.query("duration >= 0").size());
+		assertEquals("Expected remaining nodes to be found", 1, index.get("duration", 100).size());
+	}
+
+	private void removeCounts(Node indexNode) {
+		indexNode.removeProperty("count");
+		for (Relationship rel : indexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+			removeCounts(rel.getEndNode());
+		}
+	}
+
+	@Test
+	public void testUpdate2D() throws Exception {
+		String indexName = "Test Index 2D Update";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("duration", 0, 1000, 100));
+		properties.add(DefaultPropertyConfig.makeFloatConfig("signal", -120, -40, 80));
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(5, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			Random random = new Random(0);
+			for (int i = 0; i < 300; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("duration", random.nextInt(1000));
+				node.setProperty("signal", -120 + 80 * random.nextFloat());
+				index.add(node);
+				nodes.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		AmanziIndex index = new AmanziIndex(indexName, graphDb());
+		tx = graphDb().beginTx();
+		try {
+			for (int i = 0; i < nodes.size(); i++) {
+				Node node = nodes.get(i);
+				Node indexNode = node.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING)
+						.getStartNode();
+				if (i % 3 == 0) {
+					assertFalse("Expected an unchanged node not to move", index.update(node));
+					assertEquals("Expected an unchanged node to stay in its index node", indexNode, node.getSingleRelationship(
+							AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING).getStartNode());
+				} else if (i % 3 == 1) {
+					// Changing the signal within the same key leaves the node in
+					// place, but changes the statistics
+					float signal = (Float) node.getProperty("signal");
+					node.setProperty("signal", signal < -80 ? signal + 0.01f : signal - 0.01f);
+					index.update(node);
+				} else {
+					int duration = (Integer) node.getProperty("duration");
+					node.setProperty("duration", (duration + 500) % 1000);
+					assertTrue("Expected a changed node to move", index.update(node));
+				}
+				assertEquals("Expected the node to be indexed once", 1, asCollection(
+						node.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING)).size());
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		int below = 0;
+		for (Node node : nodes) {
+			if ((Integer) node.getProperty("duration") < 300) {
+				below++;
+			}
+		}
+		index = new AmanziIndex(indexName, graphDb());
+		assertEquals("Expected the query to find the changed values", below, index.query("duration < 300").size());
+		Node root = nodes.get(0).getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING)
+				.getStartNode();
+		while (root.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING)) {
+			root = root.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING).getStartNode();
+		}
+		assertEquals("Expected all nodes to be counted once", nodes.size(), assertCounts(root, true));
+		assertStatistics(root, "duration");
+		assertStatistics(root, "signal");
+	}
+
+	@Test
+	public void testDisable2D() throws Exception {
+		String indexName = "Test Index 2D Disable";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("duration", 0, 1000, 100));
+		properties.add(DefaultPropertyConfig.makeFloatConfig("signal", -120, -40, 80));
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(5, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			Random random = new Random(0);
+			for (int i = 0; i < 1000; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("duration", random.nextInt(1000));
+				node.setProperty("signal", -120 + random.nextFloat() * 80);
+				if (i % 50 == 0) {
+					// Nodes disabled before indexing are not counted
+					node.setProperty("state", "disabled");
+				}
+				index.add(node);
+				nodes.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		tx = graphDb().beginTx();
+		try {
+			AmanziIndex index = new AmanziIndex(indexName, graphDb());
+			for (int i = 0; i < nodes.size(); i++) {
+				Node node = nodes.get(i);
+				if (i % 7 == 0) {
+					index.disable(node);
+				} else if (i % 11 == 0) {
+					// Changing the state directly needs an update
+					node.setProperty("state", "disabled");
+					index.update(node);
+				} else if (i % 100 == 0) {
+					assertTrue("Expected disabled node to be enabled", index.enable(node));
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		AmanziIndex index = new AmanziIndex(indexName, graphDb());
+		Node root = nodes.get(1).getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.INCOMING).getStartNode();
+		while (root.hasRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING)) {
+			root = root.getSingleRelationship(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.INCOMING).getStartNode();
+		}
+		int enabled = 0;
+		for (Node node : nodes) {
+			if (!"disabled".equals(node.getProperty("state", null))) {
+				enabled++;
+			}
+		}
+		assertEquals("Expected only enabled nodes to be counted", enabled, assertCounts(root, true));
+		assertStatistics(root, "duration");
+		assertStatistics(root, "signal");
+		for (String query : new String[] { "duration >= 0", "duration >= 200 and duration < 700", "signal > -100" }) {
+			IndexHits<Node> hits = index.query(query);
+			int size = hits.size();
+			Aggregate aggregate = index.aggregate(query, "duration");
+			int found = 0;
+			Aggregate expected = new Aggregate();
+			for (Node node : hits) {
+				assertFalse("Expected no disabled nodes", "disabled".equals(node.getProperty("state", null)));
+				expected.add((Number) node.getProperty("duration"));
+				found++;
+			}
+			assertEquals("Expected the size to match the nodes found for " + query, found, size);
+			assertEquals("Expected the aggregate count to match the nodes found for " + query, found, aggregate.getCount());
+			assertEquals("Expected the aggregate sum to match the nodes found for " + query, expected.getSum(), aggregate.getSum(), 0.01);
+			assertEquals("Expected the aggregate min to match for " + query, expected.getMin(), aggregate.getMin());
+			assertEquals("Expected the aggregate max to match for " + query, expected.getMax(), aggregate.getMax());
+		}
+		assertEquals("Expected all enabled nodes to be found", enabled, index.query("duration >= 0").size());
+	}
+
+	/**
+	 * Check that the count of the index node, and all index nodes below it,
+	 * match the enabled data nodes below them, and optionally that there are
+	 * no empty index nodes below it.
+	 */
+	private int assertCounts(Node indexNode, boolean allowEmpty) {
+		int count = 0;
+		for (Relationship rel : indexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+			int childCount = assertCounts(rel.getEndNode(), allowEmpty);
+			assertTrue("Unexpected empty index node " + rel.getEndNode(), allowEmpty || childCount > 0);
+			count += childCount;
+		}
+		for (Relationship rel : indexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+			if (!"disabled".equals(rel.getEndNode().getProperty("state", null))) {
+				count++;
+			}
+		}
+		assertEquals("Unexpected count in " + indexNode, count, indexNode.getProperty("count"));
+		return count;
+	}
+
+	@Test
+	public void testAggregate2D() throws Exception {
+		String indexName = "Test Index 2D Aggregate";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("lac", 0, 100, 100));
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("duration", 0, 1000, 100));
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(5, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			Random random = new Random(0);
+			for (int i = 0; i < 1000; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("lac", random.nextInt(100));
+				node.setProperty("duration", random.nextInt(1000));
+				// The cost is not indexed, so has no statistics
+				node.setProperty("cost", random.nextFloat() * 10);
+				index.add(node);
+				nodes.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		AmanziIndex index = new AmanziIndex(indexName, graphDb());
+		for (String property : new String[] { "duration", "cost" }) {
+			for (int repeat = 0; repeat < 2; repeat++) {
+				// The second repeat uses the cached subtree aggregates for cost
+				Aggregate expected = new Aggregate();
+				for (Node node : nodes) {
+					int lac = (Integer) node.getProperty("lac");
+					if (lac >= 20 && lac < 70) {
+						expected.add((Number) node.getProperty(property));
+					}
+				}
+				Aggregate aggregate = index.aggregate("lac >= 20 and lac < 70", property);
+				assertEquals("Unexpected count of " + property, expected.getCount(), aggregate.getCount());
+				assertEquals("Unexpected sum of " + property, expected.getSum(), aggregate.getSum(), 0.01);
+				assertEquals("Unexpected min of " + property, expected.getMin(), aggregate.getMin());
+				assertEquals("Unexpected max of " + property, expected.getMax(), aggregate.getMax());
+				assertEquals("Unexpected average of " + property, expected.getAverage(),
+						index.aggregate("lac >= 20 and lac < 70", property, Aggregate.Function.AVG), 0.0001);
+			}
+		}
+		assertEquals("Expected the count to match the query size", index.query("lac < 50 and duration >= 500").size(),
+				(int) index.aggregate("lac < 50 and duration >= 500", "duration", Aggregate.Function.COUNT));
+		assertTrue("Expected no values outside the data",
+				Double.isNaN(index.aggregate("lac > 500", "duration", Aggregate.Function.MAX)));
+	}
+
+	/**
+	 * Check that the statistics of the index node, and all index nodes below
+	 * it, match the enabled data nodes below it.
+	 */
+	private ArrayList<Number> assertStatistics(Node indexNode, String property) {
+		ArrayList<Number> values = new ArrayList<Number>();
+		for (Relationship rel : indexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_CHILD, Direction.OUTGOING)) {
+			values.addAll(assertStatistics(rel.getEndNode(), property));
+		}
+		for (Relationship rel : indexNode.getRelationships(AmanziIndexRelationshipTypes.INDEX_LEAF, Direction.OUTGOING)) {
+			if (rel.getEndNode().hasProperty(property) && !"disabled".equals(rel.getEndNode().getProperty("state", null))) {
+				values.add((Number) rel.getEndNode().getProperty(property));
+			}
+		}
+		assertEquals("Unexpected count in " + indexNode, values.size(), IndexStatistics.getCount(indexNode, property));
+		if (values.size() > 0) {
+			double sum = 0;
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for (Number value : values) {
+				sum += value.doubleValue();
+				min = Math.min(min, value.doubleValue());
+				max = Math.max(max, value.doubleValue());
+			}
+			assertEquals("Unexpected sum in " + indexNode, sum, IndexStatistics.getSum(indexNode, property), 0.001);
+			assertEquals("Unexpected min in " + indexNode, min, IndexStatistics.getMin(indexNode, property).doubleValue());
+			assertEquals("Unexpected max in " + indexNode, max, IndexStatistics.getMax(indexNode, property).doubleValue());
+		}
+		return values;
+	}
+
+	@Test
+	public void testSize2D() throws Exception {
+		String indexName = "Test Index 2D Size";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("x", 0, 99, 100));
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("y", 0, 99, 100));
+		Transaction tx = graphDb().beginTx();
+		try {
+			IndexConfig config = new DefaultIndexConfig(4, properties);
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), config);
+			for (int x = 0; x < 100; x += 3) {
+				for (int y = 0; y < 100; y += 7) {
+					Node node = this.graphDb().createNode();
+					node.setProperty("x", x);
+					if (x % 2 == 0) {
+						// Leave some nodes without the second property
+						node.setProperty("y", y);
+					}
+					index.add(node);
+				}
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		AmanziIndex index = new AmanziIndex(indexName, graphDb());
+		assertEquals("Expected all nodes in unconstrained query", 34 * 15, index.query("x >= 0").size());
+		assertEquals("Expected the full y range of even x", 17 * 15, index.query("y >= 0").size());
+		// 0 <= x < 60 has 20 values of x, 10 of them even, and y <= 42 has 7
+		// values of y
+		assertEquals("Unexpected count for AND query", 10 * 7, index.query("x < 60 and y <= 42").size());
+		doSearchIndex(indexName, "x >= 10 and x < 80 and y > 20 and y < 75", null, new Object[0]);
+		doSearchIndex(indexName, "x == 30 or x == 33", null, new Object[0]);
+		// x < 9 has 3 values of x, and y > 90 has 2 values of y for the 17
+		// even x, of which 2 have x < 9
+		assertEquals("Unexpected count for OR query", 3 * 15 + (17 - 2) * 2, index.query("x < 9 or y > 90").size());
+		assertEquals("Expected no results for an empty range", 0, index.query("x < 9 and x > 20").size());
+		assertEquals("Expected to get all nodes with the value", 15, index.get("x", 30).size());
+		assertEquals("Expected to get the nodes with the value in the second property", 17, index.get("y", 14).size());
+		for (Node node : index.get("y", 14)) {
+			assertEquals("Expected only the value", 14, node.getProperty("y"));
+		}
+	}
+
+	@Test
+	public void testUnionDense() throws Exception {
+		String name = "Test Index 1D Dense Union";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("x", 0, 100, 20));
+		Transaction tx = graphDb().beginTx();
+		try {
+			AmanziIndex index = new AmanziIndex(name, graphDb(), new DefaultIndexConfig(10, properties));
+			for (int x = 0; x <= 100; x++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("x", x);
+				index.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		// Ranges that touch or overlap in the keys of the higher levels must
+		// not be merged into ranges with their edges inside
+		doSearchIndex(name, "x IN (40, 45, 50)", "x", new Integer[] { 40, 45, 50 });
+		AmanziIndex index = new AmanziIndex(name, graphDb());
+		assertEquals("Unexpected count for IN query", 3, index.query("x IN (40, 45, 50)").size());
+		assertEquals("Unexpected count for OR query", 97, index.query("x < 41 or x > 44").size());
+		Aggregate aggregate = index.aggregate("x IN (40, 45, 50)", "x");
+		assertEquals("Unexpected aggregate count for IN query", 3, aggregate.getCount());
+		assertEquals("Unexpected aggregate sum for IN query", 135.0, aggregate.getSum(), 0.001);
+		assertEquals("Unexpected aggregate sum for OR query", 5050.0 - 41 - 42 - 43 - 44, index.aggregate("x < 41 or x > 44", "x")
+				.getSum(), 0.001);
+	}
+
+	/**
+	 * One comparison of a random query, which can test a node directly, so
+	 * that the query results can be checked against all nodes.
+	 */
+	private static class RandomClause {
+		private final String property;
+		private final String operator;
+		private final int a;
+		private final int b;
+
+		private RandomClause(Random random, int min, int max) {
+			property = random.nextBoolean() ? "x" : "y";
+			operator = new String[] { "IN", "<", ">=", "BETWEEN", "==" }[random.nextInt(5)];
+			int first = min + random.nextInt(max - min + 1);
+			int second = min + random.nextInt(max - min + 1);
+			a = Math.min(first, second);
+			b = Math.max(first, second);
+		}
+
+		private boolean matches(Node node) {
+			if (!node.hasProperty(property)) {
+				return false;
+			}
+			int value = (Integer) node.getProperty(property);
+			if (operator.equals("IN")) {
+				return value == a || value == b;
+			} else if (operator.equals("<")) {
+				return value < a;
+			} else if (operator.equals(">=")) {
+				return value >= a;
+			} else if (operator.equals("BETWEEN")) {
+				return value >= a && value <= b;
+			} else {
+				return value == a;
+			}
+		}
+
+		public String toString() {
+			if (operator.equals("IN")) {
+				return property + " IN (" + a + ", " + b + ")";
+			} else if (operator.equals("BETWEEN")) {
+				return property + " BETWEEN " + a + " AND " + b;
+			} else {
+				return property + " " + operator + " " + a;
+			}
+		}
+	}
+
+	@Test
+	public void testUnionRandom2D() throws Exception {
+		String indexName = "Test Index 2D Random Union";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("x", -50, 150, 20));
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("y", -50, 150, 20));
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		Random random = new Random(0);
+		Transaction tx = graphDb().beginTx();
+		try {
+			AmanziIndex index = new AmanziIndex(indexName, graphDb(), new DefaultIndexConfig(4, properties));
+			for (int i = 0; i < 2000; i++) {
+				Node node = this.graphDb().createNode();
+				node.setProperty("x", random.nextInt(201) - 50);
+				if (i % 10 != 0) {
+					// Leave some nodes without the second property
+					node.setProperty("y", random.nextInt(201) - 50);
+				}
+				index.add(node);
+				nodes.add(node);
+			}
+			index.finishUp();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		AmanziIndex index = new AmanziIndex(indexName, graphDb());
+		for (int q = 0; q < 100; q++) {
+			// An 'or' of up to three comparisons, or an 'and' of two 'or's
+			ArrayList<RandomClause> left = new ArrayList<RandomClause>();
+			ArrayList<RandomClause> right = new ArrayList<RandomClause>();
+			for (int i = 1 + random.nextInt(3); i > 0; i--) {
+				left.add(new RandomClause(random, -60, 160));
+			}
+			if (random.nextInt(3) == 0) {
+				for (int i = 1 + random.nextInt(2); i > 0; i--) {
+					right.add(new RandomClause(random, -60, 160));
+				}
+			}
+			StringBuffer query = new StringBuffer();
+			for (RandomClause clause : left) {
+				query.append(query.length() > 0 ? " or " : "").append(clause);
+			}
+			if (right.size() > 0) {
+				StringBuffer other = new StringBuffer();
+				for (RandomClause clause : right) {
+					other.append(other.length() > 0 ? " or " : "").append(clause);
+				}
+				query.insert(0, "(").append(") and (").append(other).append(")");
+			}
+			HashSet<Node> expected = new HashSet<Node>();
+			double sum = 0;
+			for (Node node : nodes) {
+				if (anyMatches(left, node) && (right.isEmpty() || anyMatches(right, node))) {
+					expected.add(node);
+					sum += (Integer) node.getProperty("x");
+				}
+			}
+			assertEquals("Unexpected count for query[" + query + "]", expected.size(), index.query(query.toString()).size());
+			HashSet<Node> found = new HashSet<Node>();
+			for (Node node : index.query(query.toString())) {
+				assertTrue("Unexpected duplicate result for query[" + query + "]", found.add(node));
+			}
+			assertEquals("Unexpected results for query[" + query + "]", expected, found);
+			QueryOptions options = new QueryOptions();
+			options.setParallelism(3);
+			options.setOrdered(false);
+			assertEquals("Unexpected parallel results for query[" + query + "]", expected, new HashSet<Node>(asList(index.query(
+					options, query.toString()))));
+			options = new QueryOptions();
+			options.setOrderBy("x");
+			ArrayList<Node> ordered = asList(index.query(options, query.toString()));
+			assertEquals("Unexpected ordered results for query[" + query + "]", expected, new HashSet<Node>(ordered));
+			for (int i = 1; i < ordered.size(); i++) {
+				assertTrue("Expected results in order for query[" + query + "]",
+						(Integer) ordered.get(i - 1).getProperty("x") <= (Integer) ordered.get(i).getProperty("x"));
+			}
+			Aggregate aggregate = index.aggregate(query.toString(), "x");
+			assertEquals("Unexpected aggregate count for query[" + query + "]", expected.size(), aggregate.getCount());
+			assertEquals("Unexpected aggregate sum for query[" + query + "]", sum, aggregate.getSum(), 0.001);
+		}
+	}
+
+	private static boolean anyMatches(ArrayList<RandomClause> clauses, Node node) {
+		for (RandomClause clause : clauses) {
+			if (clause.matches(node)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static ArrayList<Node> asList(Iterable<Node> nodes) {
+		ArrayList<Node> list = new ArrayList<Node>();
+		for (Node node : nodes) {
+			list.add(node);
+		}
+		return list;
+	}
+
 	@Test
 	public void testInsert2D() throws Exception {
 		String indexName = "TestIndex";
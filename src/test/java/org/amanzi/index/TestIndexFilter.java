@@ -0,0 +1,71 @@
+package org.amanzi.index;
+
+import junit.framework.TestCase;
+
+import org.amanzi.index.config.IndexFilter;
+import org.junit.Test;
+
+public class TestIndexFilter extends TestCase {
+
+	private void assertFilter(String expected, IndexFilter filter) {
+		assertEquals("Unexpected boxes in filter", expected, filter.toString());
+	}
+
+	@Test
+	public void testRanges() {
+		assertFilter("IndexFilter[exact]([5..9, *..*])", IndexFilter.range(2, 0, 5, 9));
+		assertFilter("IndexFilter[exact]([*..*, *..3])", IndexFilter.range(2, 1, IndexFilter.UNLIMITED_MIN, 3));
+		assertTrue("Expected an inverted range to be empty", IndexFilter.range(2, 0, 9, 5).isEmpty());
+		assertFilter("IndexFilter([*..*, *..*])", IndexFilter.all(2, false));
+	}
+
+	@Test
+	public void testIntersection() {
+		IndexFilter a = IndexFilter.range(2, 0, 5, 20);
+		IndexFilter b = IndexFilter.range(2, 1, 0, 3);
+		assertFilter("IndexFilter[exact]([5..20, 0..3])", a.and(b));
+		assertFilter("IndexFilter[exact]([10..20, *..*])", a.and(IndexFilter.range(2, 0, 10, 30)));
+		assertTrue("Expected disjoint ranges to intersect to nothing", a.and(IndexFilter.range(2, 0, 30, 40)).isEmpty());
+		assertFilter("IndexFilter([5..20, *..*])", a.and(IndexFilter.all(2, false)));
+	}
+
+	@Test
+	public void testUnion() {
+		// Separate ranges of one property stay separate boxes
+		IndexFilter low = IndexFilter.range(2, 0, IndexFilter.UNLIMITED_MIN, 20);
+		IndexFilter high = IndexFilter.range(2, 0, 80, IndexFilter.UNLIMITED_MAX);
+		assertFilter("IndexFilter[exact]([*..20, *..*] or [80..*, *..*])", low.or(high));
+		// Overlapping and adjacent ranges of one property are not merged, since
+		// their limits would no longer be edges
+		assertFilter("IndexFilter[exact]([*..20, *..*] or [10..30, *..*])", low.or(IndexFilter.range(2, 0, 10, 30)));
+		assertFilter("IndexFilter[exact]([1..1, *..*] or [3..3, *..*] or [2..2, *..*])", IndexFilter.range(2, 0, 1, 1).or(
+				IndexFilter.range(2, 0, 3, 3)).or(IndexFilter.range(2, 0, 2, 2)));
+		assertFilter("IndexFilter[exact]([3..3, *..*])", IndexFilter.range(2, 0, 3, 3).or(IndexFilter.range(2, 0, 3, 3)));
+		// Ranges of different properties stay separate boxes
+		assertFilter("IndexFilter[exact]([3..3, *..*] or [*..*, 5..5])", IndexFilter.range(2, 0, 3, 3).or(
+				IndexFilter.range(2, 1, 5, 5)));
+		// Boxes inside other boxes are dropped
+		assertFilter("IndexFilter[exact]([*..20, *..*])", low.or(IndexFilter.range(2, 0, 5, 10).and(IndexFilter.range(2, 1, 0, 0))));
+		// Unfiltered conditions cover everything, but are not exact
+		assertFilter("IndexFilter([*..*, *..*])", low.or(IndexFilter.all(2, false)));
+	}
+
+	@Test
+	public void testDistribution() {
+		// (a < 20 or a > 80) and (b == 1 or b == 5) has four boxes
+		IndexFilter a = IndexFilter.range(2, 0, IndexFilter.UNLIMITED_MIN, 20).or(
+				IndexFilter.range(2, 0, 80, IndexFilter.UNLIMITED_MAX));
+		IndexFilter b = IndexFilter.range(2, 1, 1, 1).or(IndexFilter.range(2, 1, 5, 5));
+		assertEquals("Expected the cross product of the boxes", 4, a.and(b).getBoxCount());
+		assertTrue("Expected the intersection of exact filters to be exact", a.and(b).isExact());
+	}
+
+	@Test
+	public void testTooManyBoxes() {
+		IndexFilter filter = IndexFilter.none(2);
+		for (int i = 0; i <= IndexFilter.MAX_BOXES; i++) {
+			filter = filter.or(IndexFilter.range(2, 0, i * 10, i * 10));
+		}
+		assertFilter("IndexFilter([0.." + (IndexFilter.MAX_BOXES * 10) + ", *..*])", filter);
+	}
+}
@@ -0,0 +1,150 @@
+package org.amanzi.index;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.amanzi.index.aggregators.Aggregate;
+import org.amanzi.index.config.DefaultIndexConfig;
+import org.amanzi.index.config.DefaultPropertyConfig;
+import org.amanzi.index.config.PropertyConfig;
+import org.amanzi.index.loader.BigTextFileLoader;
+import org.amanzi.index.loader.IndexLoader;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+public class TestIndexLoader extends Neo4jTestCase {
+
+	@Test
+	public void testLoadCsv() throws Exception {
+		String indexName = "Test Index Loader";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("RNC PC", 12000, 14000, 100));
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("Cause", 0, 100, 100));
+		AmanziIndex index;
+		Transaction tx = graphDb().beginTx();
+		try {
+			index = new AmanziIndex(indexName, graphDb(), new DefaultIndexConfig(10, properties));
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		IndexLoader loader = new IndexLoader(graphDb(), index);
+		loader.setWorkers(3);
+		loader.setChunkSize(50);
+		loader.setTransactionSize(200);
+		loader.setColumnType("DT sec", "long");
+		long start = System.currentTimeMillis();
+		long count = loader.load("test.txt");
+		System.out.println("Loaded " + count + " nodes from test.txt in " + (System.currentTimeMillis() - start) + "ms");
+		assertEquals("Expected one node per data line", 999, count);
+		assertEquals("Expected no parsing errors", 0, loader.getErrorCount());
+
+		// Compare the index to the values in the file
+		int countCause = 0;
+		int countCause16 = 0;
+		BigTextFileLoader file = new BigTextFileLoader();
+		file.open("test.txt");
+		try {
+			boolean header = true;
+			for (String line : file) {
+				if (header) {
+					header = false;
+					continue;
+				}
+				String cause = line.split(",", -1)[16];
+				if (cause.length() > 0) {
+					countCause++;
+					if (Integer.parseInt(cause) == 16)
+						countCause16++;
+				}
+			}
+		} finally {
+			file.close();
+		}
+		index = new AmanziIndex(indexName, graphDb());
+		assertEquals("Expected all nodes indexed", 999, index.query("RNC PC >= 12000").size());
+		assertEquals("Unexpected nodes with cause 16", countCause16, index.query("Cause == 16").size());
+		Aggregate causes = index.aggregate("RNC PC >= 12000", "Cause");
+		assertEquals("Unexpected nodes with a cause", countCause, causes.getCount());
+		for (Node node : index.query("Cause == 16")) {
+			assertTrue("Expected typed column to be parsed", node.getProperty("DT sec") instanceof Long);
+			assertTrue("Expected untyped column to be a string", node.getProperty("QXManager") instanceof String);
+			assertFalse("Expected empty values to be skipped", node.hasProperty("Calling"));
+		}
+	}
+
+	@Test
+	public void testLoadZipIndexColumnsOnly() throws Exception {
+		String indexName = "Test Index Loader Zip";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("RNC PC", 12000, 14000, 100));
+		AmanziIndex index;
+		Transaction tx = graphDb().beginTx();
+		try {
+			index = new AmanziIndex(indexName, graphDb(), new DefaultIndexConfig(10, properties));
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		IndexLoader loader = new IndexLoader(graphDb(), index);
+		loader.setColumns(index.getConfig().getPropertyNames());
+		assertEquals("Expected one node per data line", 999, loader.load("test.zip"));
+		for (Node node : new AmanziIndex(indexName, graphDb()).query("RNC PC < 12600")) {
+			assertTrue("Expected the index column", node.hasProperty("RNC PC"));
+			assertFalse("Expected only the index column", node.hasProperty("QXManager"));
+		}
+	}
+
+	@Test
+	public void testLoadFailureKeepsCommittedBatches() throws Exception {
+		String indexName = "Test Index Loader Failure";
+		final ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("failing x", 0, 5000, 100));
+		AmanziIndex index;
+		Transaction tx = graphDb().beginTx();
+		try {
+			index = new AmanziIndex(indexName, graphDb(), new DefaultIndexConfig(10, properties));
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		// The last line has a value in a column with an unsupported type,
+		// which fails the parsing worker long after the first batches are
+		// committed, since the queues between the stages are bounded
+		File file = File.createTempFile("failing", ".csv");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write("failing x,bad\n");
+			for (int x = 0; x < 5000; x++) {
+				writer.write(x + ",\n");
+			}
+			writer.write("5000,1\n");
+		} finally {
+			writer.close();
+		}
+		IndexLoader loader = new IndexLoader(graphDb(), index);
+		loader.setWorkers(1);
+		loader.setChunkSize(50);
+		loader.setTransactionSize(100);
+		loader.setColumnType("bad", "unsupported");
+		try {
+			loader.load(file.getPath());
+			fail("Expected the load to fail");
+		} catch (IOException e) {
+			assertTrue("Expected the parse failure to be reported", e.getMessage().contains("unsupported"));
+		}
+		int committed = 0;
+		for (Node node : graphDb().getAllNodes()) {
+			if (node.hasProperty("failing x")) {
+				committed++;
+			}
+		}
+		assertTrue("Expected the first batches to stay committed", committed > 0 && committed < 5000);
+		assertEquals("Expected the committed nodes to be indexed", committed, new AmanziIndex(indexName, graphDb()).query(
+				"failing x >= 0").size());
+	}
+}
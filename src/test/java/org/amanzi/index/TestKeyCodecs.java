@@ -0,0 +1,61 @@
+package org.amanzi.index;
+
+import static org.amanzi.index.util.IndexUtilities.arrayString;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.amanzi.index.codecs.IntArrayKeyCodec;
+import org.amanzi.index.codecs.KeyCodec;
+import org.amanzi.index.codecs.PackedLongKeyCodec;
+import org.junit.Test;
+
+public class TestKeyCodecs extends TestCase {
+
+	@Test
+	public void testIntArrayCodec() {
+		KeyCodec codec = new IntArrayKeyCodec();
+		int[] keys = new int[] { -5, 0, AmanziIndex.NO_PROPERTY };
+		Object stored = codec.encode(keys);
+		assertTrue("Expected int[] to be stored", stored instanceof int[]);
+		assertTrue("Expected stored keys to match", codec.matches(stored, keys));
+		assertEquals(AmanziIndex.NO_PROPERTY, codec.keyAt(stored, 2));
+	}
+
+	@Test
+	public void testPackedLongCodec() {
+		Random random = new Random(0);
+		for (int size = 1; size <= 6; size++) {
+			KeyCodec codec = new PackedLongKeyCodec(size);
+			int range = size <= 2 ? Integer.MAX_VALUE : 1 << (64 / size - 2);
+			for (int t = 0; t < 1000; t++) {
+				int[] keys = new int[size];
+				for (int i = 0; i < size; i++) {
+					keys[i] = t % 10 == i ? AmanziIndex.NO_PROPERTY : random.nextInt(range) - range / 2;
+				}
+				Object stored = codec.encode(keys);
+				assertTrue("Expected keys " + arrayString(keys) + " to be packed by " + codec, stored instanceof Long);
+				assertTrue("Expected keys " + arrayString(keys) + " to match", codec.matches(stored, keys));
+				assertTrue("Expected keys " + arrayString(keys) + " to decode", Arrays.equals(keys, codec.decode(stored)));
+				for (int i = 0; i < size; i++) {
+					assertEquals(keys[i], codec.keyAt(stored, i));
+				}
+				int[] other = Arrays.copyOf(keys, size);
+				other[t % size] = other[t % size] == 0 ? 1 : 0;
+				assertFalse("Expected keys " + arrayString(other) + " not to match", codec.matches(stored, other));
+			}
+		}
+	}
+
+	@Test
+	public void testPackedLongCodecFallback() {
+		KeyCodec codec = new PackedLongKeyCodec(4);
+		int[] keys = new int[] { 1, 2, 100000, 4 };
+		Object stored = codec.encode(keys);
+		assertTrue("Expected keys too large for 16 bits to be stored as int[]", stored instanceof int[]);
+		assertTrue("Expected stored keys to match", codec.matches(stored, keys));
+		assertEquals(100000, codec.keyAt(stored, 2));
+	}
+}
@@ -3,6 +3,7 @@ package org.amanzi.index;
 import java.io.PrintStream;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -12,6 +13,7 @@ import junit.framework.TestCase;
 import org.amanzi.index.mappers.CharacterStringMapper;
 import org.amanzi.index.mappers.FloatMapper;
 import org.amanzi.index.mappers.IntegerMapper;
+import org.amanzi.index.mappers.ListStringMapper;
 import org.amanzi.index.mappers.Mapper;
 import org.amanzi.index.mappers.NumberMapper;
 import org.junit.Test;
@@ -379,4 +381,77 @@ public class TestMappers extends TestCase {
 		}
 	}
 
+	@Test
+	public void testKeyForDoesNotRecord() throws Exception {
+		IntegerMapper mapper = IntegerMapper.withRangeAndStep(0, 100, 10);
+		assertEquals("Expected the same key as toKey", mapper.toKey(55), mapper.keyFor(55));
+		assertEquals("Expected the same key as toKey", mapper.toKey(-25), mapper.keyFor(-25));
+		mapper.keyFor(1000);
+		assertEquals("Expected query values not to change the max", 100, (int) mapper.getMax());
+		mapper.keyFor(-1000);
+		assertEquals("Expected query values not to change the min", -25, (int) mapper.getMin());
+		ListStringMapper listMapper = ListStringMapper.withSample(Arrays.asList("Cause 1", "Cause 2"));
+		assertEquals("Expected an unknown value to have no key", Mapper.NO_KEY, listMapper.keyFor("Cause 3"));
+		assertEquals("Expected query values not to be given keys", Mapper.NO_KEY, listMapper.keyFor("Cause 3"));
+		int generation = listMapper.getGeneration();
+		listMapper.toKey("Cause 1");
+		assertEquals("Expected known values not to change the generation", generation, listMapper.getGeneration());
+		int key = listMapper.toKey("Cause 3");
+		assertTrue("Expected a new key to change the generation", generation != listMapper.getGeneration());
+		assertEquals("Expected a new value to keep its key", key, listMapper.keyFor("Cause 3"));
+		assertFalse("Expected a new value to get a new key", key == listMapper.keyFor("Cause 1"));
+	}
+
+	@Test
+	public void testConcurrentMappers() throws Exception {
+		final IntegerMapper integerMapper = IntegerMapper.withRangeAndStep(0, 100, 10);
+		final FloatMapper floatMapper = FloatMapper.withRangeAndStep(0, 100, 10);
+		final CharacterStringMapper stringMapper = CharacterStringMapper.withOrigin("M", 1);
+		final ListStringMapper listMapper = ListStringMapper.getDefault();
+		final int threads = 4;
+		final int values = 10000;
+		final int[][] listKeys = new int[threads][values];
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		final ArrayList<Throwable> failures = new ArrayList<Throwable>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < values; i++) {
+							// Each thread maps a different part of the range,
+							// and only the last thread sees the extremes
+							int value = thread * values + i;
+							assertEquals(integerMapper.keyFor(value), integerMapper.toKey(value));
+							assertEquals(floatMapper.keyFor((float) -value), floatMapper.toKey((float) -value));
+							stringMapper.toKey(String.valueOf((char) ('A' + (value % 26))));
+							listKeys[thread][i] = listMapper.toKey("Value " + (i % 500));
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals("Unexpected failures: " + failures, 0, failures.size());
+		assertEquals("Expected the max of all threads", threads * values - 1, (int) integerMapper.getMax());
+		assertEquals("Expected the min of all threads", 0, (int) integerMapper.getMin());
+		assertEquals("Expected the min of all threads", -(threads * values - 1), floatMapper.getMin(), 0.0f);
+		assertEquals("Expected the min of all threads", "A", stringMapper.getMin());
+		assertEquals("Expected the max of all threads", "Z", stringMapper.getMax());
+		for (int i = 0; i < values; i++) {
+			for (int t = 1; t < threads; t++) {
+				assertEquals("Expected all threads to get the same key for a value", listKeys[0][i], listKeys[t][i]);
+			}
+		}
+	}
+
 }
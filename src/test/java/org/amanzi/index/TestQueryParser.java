@@ -0,0 +1,81 @@
+package org.amanzi.index;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.amanzi.index.config.DefaultIndexConfig;
+import org.amanzi.index.config.DefaultPropertyConfig;
+import org.amanzi.index.config.PropertyConfig;
+import org.junit.Test;
+
+public class TestQueryParser extends TestCase {
+	private QueryParser parser;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		ArrayList<PropertyConfig<?>> properties = new ArrayList<PropertyConfig<?>>();
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("a", 0, 100));
+		properties.add(DefaultPropertyConfig.makeIntegerConfig("RNC PC", 0, 100));
+		properties.add(DefaultPropertyConfig.makeStringConfig("name", "A", "Z"));
+		parser = new QueryParser(new DefaultIndexConfig(10, properties));
+	}
+
+	private void assertParsed(String expected, String query) {
+		assertEquals("Unexpected conditions for query[" + query + "]", expected, parser.parse(query).toString());
+	}
+
+	private void assertInvalid(String query) {
+		try {
+			parser.parse(query);
+			fail("Expected query to be invalid: " + query);
+		} catch (RuntimeException e) {
+			System.out.println("Invalid query[" + query + "]: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testComparisons() {
+		assertParsed("EqualsCondition[a == 5]", "a == 5");
+		assertParsed("EqualsCondition[a == 5]", "a=5");
+		assertParsed("LessThanOrEqualsCondition[a <= -5]", "a<=-5");
+		assertParsed("NotCondition(EqualsCondition[a == 5])", "a != 5");
+		assertParsed("GreaterThanCondition[RNC PC > 12]", "RNC PC > 12");
+		assertParsed("EqualsCondition[name == AB CD]", "name == 'AB CD'");
+		assertParsed("EqualsCondition[name == or]", "name == \"or\"");
+	}
+
+	@Test
+	public void testPrecedence() {
+		assertParsed("OrCondition(AndCondition(GreaterThanOrEqualsCondition[a >= 5], LessThanCondition[a < 20]), "
+				+ "EqualsCondition[a == 45])", "a >= 5 and a < 20 or a == 45");
+		assertParsed("AndCondition(GreaterThanOrEqualsCondition[a >= 5], OrCondition(LessThanCondition[a < 20], "
+				+ "EqualsCondition[a == 45]))", "a >= 5 AND (a < 20 OR a == 45)");
+		assertParsed("OrCondition(AndCondition(NotCondition(EqualsCondition[a == 1]), EqualsCondition[RNC PC == 2]), "
+				+ "EqualsCondition[a == 3])", "not a == 1 and RNC PC == 2 or a == 3");
+		assertParsed("NotCondition(OrCondition(EqualsCondition[a == 1], EqualsCondition[a == 2]))", "NOT (a == 1 Or a == 2)");
+	}
+
+	@Test
+	public void testInAndBetween() {
+		assertParsed("OrCondition(EqualsCondition[a == 1], EqualsCondition[a == 2], EqualsCondition[a == 3])", "a IN (1, 2,3)");
+		assertParsed("NotCondition(EqualsCondition[a == 1])", "a not in (1)");
+		assertParsed("AndCondition(GreaterThanOrEqualsCondition[a >= 1], LessThanOrEqualsCondition[a <= 9])", "a BETWEEN 1 AND 9");
+		assertParsed("AndCondition(AndCondition(GreaterThanOrEqualsCondition[a >= 1], LessThanOrEqualsCondition[a <= 9]), "
+				+ "EqualsCondition[name == X])", "a between 1 and 9 and name == X");
+	}
+
+	@Test
+	public void testInvalid() {
+		assertInvalid("");
+		assertInvalid("a ==");
+		assertInvalid("a == 5 and");
+		assertInvalid("(a == 5");
+		assertInvalid("a == 5)");
+		assertInvalid("b == 5");
+		assertInvalid("a == five");
+		assertInvalid("a BETWEEN 1 OR 2");
+		assertInvalid("a IN 1, 2");
+		assertInvalid("name == 'unterminated");
+	}
+}